@@ -3,20 +3,32 @@ package org.dsa.iot.etsdb.db;
 import org.dsa.iot.commons.ParameterizedAction;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.NodeUtils;
 import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.TimeUtils;
 import org.dsa.iot.dslink.util.handler.CompleteHandler;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.etsdb.serializer.ByteData;
 import org.dsa.iot.etsdb.serializer.ValueSerializer;
 import org.dsa.iot.historian.database.Database;
 import org.dsa.iot.historian.utils.QueryData;
+import org.dsa.iot.historian.utils.TimeParser;
+import org.etsdb.Aggregate;
+import org.etsdb.AggregateCallback;
+import org.etsdb.Cursor;
 import org.etsdb.DatabaseFactory;
+import org.etsdb.Downsampling;
+import org.etsdb.GapFill;
 import org.etsdb.QueryCallback;
 import org.etsdb.impl.DatabaseImpl;
 import org.slf4j.Logger;
@@ -34,12 +46,14 @@ import java.util.concurrent.TimeUnit;
 public class Db extends Database {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Db.class);
+    private static final int MAX_PAGE_SIZE = 10000;
     private final DbProvider provider;
     private final String path;
     private final File fPath;
 
     private DatabaseImpl<ByteData> db;
     private boolean purgeable;
+    private long queryRowLimit;
     private long diskSpaceRemaining;
     private ScheduledFuture<?> diskUsedMonitor;
     private ScheduledFuture<?> diskFreeMonitor;
@@ -75,6 +89,22 @@ public class Db extends Database {
 
     @Override
     public void write(String path, Value value, long ts) {
+        // Doubles, longs and booleans are written without the ByteData wrapper.
+        ValueType type = value.getType();
+        if (type.compare(ValueType.NUMBER)) {
+            Number number = value.getNumber();
+            if (number instanceof Double) {
+                db.writeDouble(path, ts, number.doubleValue());
+                return;
+            } else if (number instanceof Long) {
+                db.writeLong(path, ts, number.longValue());
+                return;
+            }
+        } else if (type.compare(ValueType.BOOL) && value.getBool() != null) {
+            db.writeBoolean(path, ts, value.getBool());
+            return;
+        }
+
         ByteData d = new ByteData();
         d.setValue(value);
         db.write(path, ts, d);
@@ -90,12 +120,23 @@ public class Db extends Database {
             return;
         }
         
-        db.query(path, from, to, new QueryCallback<ByteData>() {
-            @Override
-            public void sample(String seriesId, long ts, ByteData data) {
-                handler.handle(data);
+        // The samples are read a page at a time by a cursor, which only locks the database while it reads a page. A
+        // long query does not hold up writers, and a handler that blocks while its output is full pauses the scan
+        // without holding any locks. The cursor reads the samples as views and only keeps their values.
+        Cursor<ByteData> cursor = db.openCursor(path, from, to, false);
+        try {
+            long count = 0;
+            while (cursor.next()) {
+                if (queryRowLimit > 0 && count >= queryRowLimit) {
+                    LOGGER.warn("Query of {} stopped at the limit of {} rows", path, queryRowLimit);
+                    break;
+                }
+                handler.handle(cursor.getValue());
+                count++;
             }
-        });
+        } finally {
+            cursor.close();
+        }
         handler.complete();
     }
 
@@ -107,14 +148,13 @@ public class Db extends Database {
             return null;
         }
         
-        db.query(path, Long.MIN_VALUE,
-                Long.MAX_VALUE, 1, new QueryCallback<ByteData>() {
-                    @Override
-                    public void sample(String seriesId, long ts, ByteData b) {
-                        data.setTimestamp(ts);
-                        data.setValue(b.getValue());
-                    }
-                });
+        db.queryFirst(path, new QueryCallback<ByteData>() {
+            @Override
+            public void sample(String seriesId, long ts, ByteData b) {
+                data.setTimestamp(ts);
+                data.setValue(b.getValue());
+            }
+        });
         return data;
     }
 
@@ -126,14 +166,13 @@ public class Db extends Database {
             return null;
         }
         
-        db.query(path, Long.MIN_VALUE,
-                Long.MAX_VALUE, 1, true, new QueryCallback<ByteData>() {
-                    @Override
-                    public void sample(String seriesId, long ts, ByteData b) {
-                        data.setTimestamp(ts);
-                        data.setValue(b.getValue());
-                    }
-                });
+        db.queryLast(path, new QueryCallback<ByteData>() {
+            @Override
+            public void sample(String seriesId, long ts, ByteData b) {
+                data.setTimestamp(ts);
+                data.setValue(b.getValue());
+            }
+        });
         return data;
     }
 
@@ -162,6 +201,7 @@ public class Db extends Database {
         {
             NodeBuilder b = parent.createChild("edit");
             b.setDisplayName("Edit");
+            b.setRoConfig("qrl", new Value(0));
             {
                 final Parameter nameParam;
                 {
@@ -185,12 +225,29 @@ public class Db extends Database {
                     }
                 }
 
+                final Parameter limitParam;
+                {
+                    limitParam = new Parameter("Query Row Limit", ValueType.NUMBER);
+                    Value def = NodeUtils.getRoConfig(b, "qrl");
+                    b.setRoConfig("qrl", def);
+                    limitParam.setDefaultValue(def);
+                    {
+                        String desc = "Maximum number of rows that a ";
+                        desc += "history query returns, or 0 for no ";
+                        desc += "limit. Use Get History Page to read ";
+                        desc += "longer ranges.";
+                        limitParam.setDescription(desc);
+                    }
+                }
+
                 EditSettingsHandler a = new EditSettingsHandler();
                 a.addParameter(nameParam);
                 a.addParameter(pathParam);
+                a.addParameter(limitParam);
                 b.setAction(a);
             }
-            b.build();
+            Node node = b.build();
+            queryRowLimit = node.getRoConfig("qrl").getNumber().longValue();
         }
 
         {
@@ -253,6 +310,149 @@ public class Db extends Database {
             b.build();
         }
 
+        {
+            NodeBuilder b = parent.createChild("getAggregates");
+            b.setDisplayName("Get Aggregates");
+            b.setSerializable(false);
+            {
+                final Parameter pathParam;
+                {
+                    pathParam = new Parameter("Path", ValueType.STRING);
+                    pathParam.setDescription("Path of the series in the database");
+                }
+
+                final Parameter rangeParam;
+                {
+                    rangeParam = new Parameter("Timerange", ValueType.STRING);
+                    rangeParam.setEditorType(EditorType.DATE_RANGE);
+                }
+
+                final Parameter intervalParam;
+                {
+                    intervalParam = new Parameter("Interval", ValueType.NUMBER);
+                    intervalParam.setDefaultValue(new Value(300));
+                    intervalParam.setDescription("Length of the intervals in seconds");
+                }
+
+                final Parameter fillParam;
+                {
+                    fillParam = new Parameter("Gap Fill", ValueType.makeEnum("none", "previous", "linear"));
+                    fillParam.setDefaultValue(new Value("none"));
+                    {
+                        String desc = "How intervals without samples between ";
+                        desc += "intervals with samples are returned.";
+                        fillParam.setDescription(desc);
+                    }
+                }
+
+                AggregatesHandler a = new AggregatesHandler();
+                a.addParameter(pathParam);
+                a.addParameter(rangeParam);
+                a.addParameter(intervalParam);
+                a.addParameter(fillParam);
+                b.setAction(a);
+            }
+            b.build();
+        }
+
+        {
+            NodeBuilder b = parent.createChild("getHistoryPage");
+            b.setDisplayName("Get History Page");
+            b.setSerializable(false);
+            {
+                final Parameter pathParam;
+                {
+                    pathParam = new Parameter("Path", ValueType.STRING);
+                    pathParam.setDescription("Path of the series in the database");
+                }
+
+                final Parameter rangeParam;
+                {
+                    rangeParam = new Parameter("Timerange", ValueType.STRING);
+                    rangeParam.setEditorType(EditorType.DATE_RANGE);
+                }
+
+                final Parameter sizeParam;
+                {
+                    sizeParam = new Parameter("Page Size", ValueType.NUMBER);
+                    sizeParam.setDefaultValue(new Value(1000));
+                    sizeParam.setDescription("Number of rows per page, up to " + MAX_PAGE_SIZE);
+                }
+
+                final Parameter tokenParam;
+                {
+                    tokenParam = new Parameter("Continuation", ValueType.STRING);
+                    {
+                        String desc = "Continuation of the last row of the ";
+                        desc += "previous page, to read the next page. ";
+                        desc += "The path and timerange are then ignored. ";
+                        desc += "It is empty on the last page.";
+                        tokenParam.setDescription(desc);
+                    }
+                }
+
+                HistoryPageHandler a = new HistoryPageHandler();
+                a.addParameter(pathParam);
+                a.addParameter(rangeParam);
+                a.addParameter(sizeParam);
+                a.addParameter(tokenParam);
+                b.setAction(a);
+            }
+            b.build();
+        }
+
+        {
+            NodeBuilder b = parent.createChild("getDownsampled");
+            b.setDisplayName("Get Downsampled History");
+            b.setSerializable(false);
+            {
+                final Parameter pathParam;
+                {
+                    pathParam = new Parameter("Path", ValueType.STRING);
+                    pathParam.setDescription("Path of the series in the database");
+                }
+
+                final Parameter rangeParam;
+                {
+                    rangeParam = new Parameter("Timerange", ValueType.STRING);
+                    rangeParam.setEditorType(EditorType.DATE_RANGE);
+                }
+
+                final Parameter pointsParam;
+                {
+                    pointsParam = new Parameter("Max Points", ValueType.NUMBER);
+                    pointsParam.setDefaultValue(new Value(2000));
+                    {
+                        String desc = "Maximum number of samples to return. ";
+                        desc += "M4 returns up to 4 samples per pixel ";
+                        desc += "column, so use 4 times the chart width.";
+                        pointsParam.setDescription(desc);
+                    }
+                }
+
+                final Parameter methodParam;
+                {
+                    methodParam = new Parameter("Method", ValueType.makeEnum("m4", "lttb"));
+                    methodParam.setDefaultValue(new Value("m4"));
+                    {
+                        String desc = "M4 keeps the first, last, minimum and ";
+                        desc += "maximum sample per column. LTTB keeps ";
+                        desc += "one sample per bucket that preserves the ";
+                        desc += "shape of the line.";
+                        methodParam.setDescription(desc);
+                    }
+                }
+
+                DownsampleHandler a = new DownsampleHandler();
+                a.addParameter(pathParam);
+                a.addParameter(rangeParam);
+                a.addParameter(pointsParam);
+                a.addParameter(methodParam);
+                b.setAction(a);
+            }
+            b.build();
+        }
+
         {
             NodeBuilder b = parent.createChild("wps");
             b.setDisplayName("Writes Per Second");
@@ -322,6 +522,52 @@ public class Db extends Database {
             });
         }
 
+        {
+            NodeBuilder b = parent.createChild("qb");
+            b.setDisplayName("Queue Bytes");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getQueueBytes()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setQueueBytesHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
+        {
+            NodeBuilder b = parent.createChild("qbt");
+            b.setDisplayName("Queue Blocked Time");
+            b.setValueType(ValueType.NUMBER);
+            b.setConfig("unit", new Value("ms"));
+            b.setValue(new Value(db.getQueueBlockedMillis()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setQueueBlockedMillisHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
+        {
+            NodeBuilder b = parent.createChild("qd");
+            b.setDisplayName("Queue Drops");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getQueueDrops()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setQueueDropsHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
         {
             NodeBuilder b = parent.createChild("fcf");
             b.setDisplayName("Forced Rows Flushed");
@@ -382,6 +628,36 @@ public class Db extends Database {
             });
         }
 
+        {
+            NodeBuilder b = parent.createChild("lcs");
+            b.setDisplayName("Last Commit Size");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getLastCommitSize()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setLastCommitSizeHandler(new Handler<Integer>() {
+                @Override
+                public void handle(Integer event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
+        {
+            NodeBuilder b = parent.createChild("lcd");
+            b.setDisplayName("Last Commit Duration");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getLastCommitMillis()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setLastCommitMillisHandler(new Handler<Integer>() {
+                @Override
+                public void handle(Integer event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
         {
             NodeBuilder b = parent.createChild("brw");
             b.setDisplayName("Backdated Rows written");
@@ -427,6 +703,51 @@ public class Db extends Database {
             });
         }
 
+        {
+            NodeBuilder b = parent.createChild("fhh");
+            b.setDisplayName("File Handle Hits");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getFileHandleHits()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setFileHandleHitsHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
+        {
+            NodeBuilder b = parent.createChild("fhm");
+            b.setDisplayName("File Handle Misses");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getFileHandleMisses()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setFileHandleMissesHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
+        {
+            NodeBuilder b = parent.createChild("fhe");
+            b.setDisplayName("File Handle Evictions");
+            b.setValueType(ValueType.NUMBER);
+            b.setValue(new Value(db.getFileHandleEvictions()));
+            final Node node = b.build();
+            node.setSerializable(false);
+            db.setFileHandleEvictionsHandler(new Handler<Long>() {
+                @Override
+                public void handle(Long event) {
+                    node.setValue(new Value(event));
+                }
+            });
+        }
+
         {
             NodeBuilder b = parent.createChild("dbs");
             b.setDisplayName("Database Size");
@@ -511,6 +832,23 @@ public class Db extends Database {
         }
     }
 
+    /**
+     * Parses a date range parameter, given as two times separated by a slash, the same way as the purge action does.
+     *
+     * @return the from and to timestamps.
+     */
+    private static long[] parseTimerange(Value value) {
+        String range = value == null ? null : value.getString();
+        if (range == null) {
+            throw new IllegalArgumentException("Timerange is required");
+        }
+        String[] split = range.split("/");
+        if (split.length != 2) {
+            throw new IllegalArgumentException("Timerange must be two times separated by a slash: " + range);
+        }
+        return new long[]{TimeParser.parse(split[0]), TimeParser.parse(split[1])};
+    }
+
     private class EditSettingsHandler extends ParameterizedAction {
 
         public EditSettingsHandler() {
@@ -530,6 +868,138 @@ public class Db extends Database {
                 node.setConfig("path", vPath);
                 db.move(new File(vPath.getString()));
             }
+
+            Value vLimit = params.get("Query Row Limit");
+            if (vLimit.getNumber().longValue() < 0) {
+                vLimit.set(0);
+            }
+            event.getNode().setRoConfig("qrl", vLimit);
+            queryRowLimit = vLimit.getNumber().longValue();
+        }
+    }
+
+    private class AggregatesHandler extends ParameterizedAction {
+
+        private final Aggregate[] aggregates = Aggregate.values();
+
+        public AggregatesHandler() {
+            super(Permission.READ);
+            setResultType(ResultType.TABLE);
+            addResult(new Parameter("timestamp", ValueType.TIME));
+            for (Aggregate aggregate : aggregates) {
+                addResult(new Parameter(aggregate.name().toLowerCase(), ValueType.NUMBER));
+            }
+        }
+
+        @Override
+        public void handle(ActionResult event, Map<String, Value> params) {
+            String path = params.get("Path").getString();
+            long[] range = parseTimerange(params.get("Timerange"));
+            long from = range[0];
+            long to = range[1];
+            long interval = (long) (params.get("Interval").getNumber().doubleValue() * 1000);
+            GapFill gapFill = GapFill.valueOf(params.get("Gap Fill").getString().toUpperCase());
+
+            final Table table = event.getTable();
+            db.aggregate(path, from, to, interval, aggregates, gapFill, new AggregateCallback() {
+                @Override
+                public void interval(String seriesId, long ts, double[] values) {
+                    Value[] row = new Value[values.length + 1];
+                    row[0] = new Value(TimeUtils.encode(ts, true).toString());
+                    for (int i = 0; i < values.length; i++) {
+                        row[i + 1] = new Value(values[i]);
+                    }
+                    table.addRow(Row.make(row));
+                }
+            });
+        }
+    }
+
+    private class HistoryPageHandler extends ParameterizedAction {
+
+        public HistoryPageHandler() {
+            super(Permission.READ);
+            setResultType(ResultType.TABLE);
+            addResult(new Parameter("timestamp", ValueType.TIME));
+            addResult(new Parameter("value", ValueType.DYNAMIC));
+            addResult(new Parameter("continuation", ValueType.STRING));
+        }
+
+        @Override
+        public void handle(ActionResult event, Map<String, Value> params) {
+            int pageSize = params.get("Page Size").getNumber().intValue();
+            if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+                pageSize = MAX_PAGE_SIZE;
+            }
+
+            Cursor<ByteData> cursor;
+            Value vToken = params.get("Continuation");
+            if (vToken != null && vToken.getString() != null && !vToken.getString().isEmpty()) {
+                cursor = db.openCursor(vToken.getString());
+            } else {
+                String path = params.get("Path").getString();
+                long[] range = parseTimerange(params.get("Timerange"));
+                cursor = db.openCursor(path, range[0], range[1], false);
+            }
+
+            Table table = event.getTable();
+            try {
+                // Each row is held back until the next is read, so that the last one can carry the continuation. The
+                // other rows carry an empty string, which also marks the last page.
+                Value time = null;
+                Value value = null;
+                int count = 0;
+                while (count < pageSize && cursor.next()) {
+                    if (time != null) {
+                        table.addRow(Row.make(time, value, new Value("")));
+                    }
+                    time = new Value(TimeUtils.encode(cursor.getTimestamp(), true).toString());
+                    value = cursor.getValue().getValue();
+                    count++;
+                }
+
+                String continuation = "";
+                if (count == pageSize) {
+                    String token = cursor.getContinuationToken();
+                    if (cursor.next()) {
+                        continuation = token;
+                    }
+                }
+                if (time != null) {
+                    table.addRow(Row.make(time, value, new Value(continuation)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private class DownsampleHandler extends ParameterizedAction {
+
+        public DownsampleHandler() {
+            super(Permission.READ);
+            setResultType(ResultType.TABLE);
+            addResult(new Parameter("timestamp", ValueType.TIME));
+            addResult(new Parameter("value", ValueType.DYNAMIC));
+        }
+
+        @Override
+        public void handle(ActionResult event, Map<String, Value> params) {
+            String path = params.get("Path").getString();
+            long[] range = parseTimerange(params.get("Timerange"));
+            long from = range[0];
+            long to = range[1];
+            int maxPoints = params.get("Max Points").getNumber().intValue();
+            Downsampling method = Downsampling.valueOf(params.get("Method").getString().toUpperCase());
+
+            final Table table = event.getTable();
+            db.downsample(path, from, to, maxPoints, method, new QueryCallback<ByteData>() {
+                @Override
+                public void sample(String seriesId, long ts, ByteData data) {
+                    Value time = new Value(TimeUtils.encode(ts, true).toString());
+                    table.addRow(Row.make(time, data.getValue()));
+                }
+            });
         }
     }
 
@@ -4,6 +4,7 @@ import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.etsdb.serializer.ByteData;
 import org.etsdb.TimeRange;
 import org.etsdb.impl.DatabaseImpl;
+import org.etsdb.impl.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,7 +59,7 @@ public class DbPurger {
                     File path = db.getPath();
                     long curr = path.getUsableSpace();
                     long request = db.getDiskSpaceRemaining();
-                    long delCount = 0;
+                    long purgedTo = Long.MIN_VALUE;
                     if (curr - request <= 0) {
                         if (!running) {
                             break;
@@ -78,21 +79,26 @@ public class DbPurger {
 	                        if (range == null || range.isUndefined()) {
 	                            break;
 	                        }
-	
+
 	                        long from = range.getFrom();
-	                        for (String s : series) {
-	                            delCount += realDb.delete(s, from, from + 3600000);
-	                        }
-	
-	                        if (delCount <= 0) {
+	                        if (from < purgedTo) {
+	                            // The shards were not removed, so purging them again frees nothing.
 	                            break;
 	                        }
+
+	                        // Deletes only add tombstones, which free no space until their shard is compacted, and
+	                        // compacting needs room for a copy of the shard. The oldest shard is removed as a whole
+	                        // instead, which frees its files at once.
+	                        purgedTo = Utils.getTimestamp(Utils.getShardId(from) + 1, 0);
+	                        for (String s : series) {
+	                            realDb.purge(s, purgedTo);
+	                        }
 	                        curr = path.getUsableSpace();
                         }
                     }
-                    if (delCount > 0) {
+                    if (purgedTo != Long.MIN_VALUE) {
                         String p = path.getPath();
-                        LOGGER.info("Deleted {} records from {}", delCount, p);
+                        LOGGER.info("Purged the data before {} from {}", purgedTo, p);
                     }
                 }
             }
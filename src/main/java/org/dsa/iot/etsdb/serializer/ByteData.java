@@ -1,12 +1,20 @@
 package org.dsa.iot.etsdb.serializer;
 
 import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.historian.utils.QueryData;
 import org.etsdb.ByteArrayBuilder;
 
+import java.util.Arrays;
+
 /**
+ * A sample of the database. A sample that was read holds its serialized data and only creates its Value when getValue
+ * is called. A view (see ValueSerializer.view) refers to the read buffer of the query and is reused for the next
+ * sample, so it must be copied to be kept after the callback returns, or detached, which keeps only its Value (see
+ * ValueSerializer.detach). isNumber and getDouble read the data without creating a Value.
+ *
  * @author Samuel Grenier
  */
 public class ByteData extends QueryData {
@@ -15,6 +23,8 @@ public class ByteData extends QueryData {
 
     private byte type;
     private byte[] bytes;
+    private int offset;
+    private int length;
 
     public void setType(byte type) {
         this.type = type;
@@ -22,6 +32,64 @@ public class ByteData extends QueryData {
 
     public void setBytes(byte[] bytes) {
         this.bytes = bytes;
+        offset = 0;
+        length = bytes == null ? 0 : bytes.length;
+    }
+
+    /**
+     * Makes this a view of the given serialized sample, starting with its type.
+     */
+    void wrap(byte[] data, int off, int len, long ts) {
+        type = data[off];
+        bytes = data;
+        offset = off + 1;
+        length = len - 1;
+        value = null;
+        setTimestamp(ts);
+    }
+
+    /**
+     * @return a copy of the sample that does not refer to the read buffer, and can be kept after the callback returns.
+     */
+    public ByteData copy() {
+        ByteData copy = new ByteData();
+        copy.value = value;
+        copy.type = type;
+        if (bytes != null) {
+            copy.setBytes(Arrays.copyOfRange(bytes, offset, offset + length));
+        }
+        copy.setTimestamp(getTimestamp());
+        return copy;
+    }
+
+    /**
+     * @return true if the sample is a number or a boolean, whose value getDouble returns.
+     */
+    public boolean isNumber() {
+        if (bytes == null) {
+            if (value == null) {
+                return false;
+            }
+            ValueType valueType = value.getType();
+            if (valueType.compare(ValueType.NUMBER)) {
+                return value.getNumber() != null;
+            }
+            return valueType.compare(ValueType.BOOL) && value.getBool() != null;
+        }
+        return ValueSerializer.isDouble(type, bytes, offset, length);
+    }
+
+    /**
+     * @return the value of a sample for which isNumber is true, without creating a Value if it was read.
+     */
+    public double getDouble() {
+        if (bytes == null) {
+            if (value.getType().compare(ValueType.BOOL)) {
+                return value.getBool() ? 1 : 0;
+            }
+            return value.getNumber().doubleValue();
+        }
+        return ValueSerializer.toDouble(type, bytes, offset);
     }
 
     @Override
@@ -32,11 +100,11 @@ public class ByteData extends QueryData {
     @Override
     public Value getValue() {
         if (value == null && bytes != null) {
-            ByteArrayBuilder b = new ByteArrayBuilder(bytes);
+            ByteArrayBuilder b = new ByteArrayBuilder(bytes, offset, length);
             switch (type) {
                 case ValueSerializer.NUMBER: {
-                    type = b.get();
-                    switch (type) {
+                    byte numberType = b.get();
+                    switch (numberType) {
                         case ValueSerializer.BYTE:
                             value = new Value(b.get());
                             break;
@@ -56,7 +124,7 @@ public class ByteData extends QueryData {
                             value = new Value(b.getDouble());
                             break;
                         default:
-                            throw new RuntimeException("Unsupported type: " + type);
+                            throw new RuntimeException("Unsupported type: " + numberType);
                     }
                     break;
                 }
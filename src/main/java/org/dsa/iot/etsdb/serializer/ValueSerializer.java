@@ -4,12 +4,12 @@ import io.netty.util.CharsetUtil;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.etsdb.ByteArrayBuilder;
-import org.etsdb.Serializer;
+import org.etsdb.PrimitiveSerializer;
 
 /**
  * @author Samuel Grenier
  */
-public class ValueSerializer extends Serializer<ByteData> {
+public class ValueSerializer extends PrimitiveSerializer<ByteData> {
 
     public static final byte NUMBER = 0;
     public static final byte BOOL = 1;
@@ -93,4 +93,183 @@ public class ValueSerializer extends Serializer<ByteData> {
 
         return data;
     }
+
+    /**
+     * Returns a view of the sample that refers to the read buffer, reusing the previous view of the query.
+     */
+    @Override
+    public ByteData view(ByteArrayBuilder b, long ts, ByteData previous) {
+        if (b.getAvailable() <= 0) {
+            return null;
+        }
+
+        ByteData data = previous == null ? new ByteData() : previous;
+        data.wrap(b.getBuffer(), b.getReadOffset(), b.getAvailable(), ts);
+        return data;
+    }
+
+    /**
+     * Returns a sample that only holds the value of the view, so that the serialized data is not copied.
+     */
+    @Override
+    public ByteData detach(ByteData view) {
+        ByteData data = new ByteData();
+        data.setTimestamp(view.getTimestamp());
+        data.setValue(view.getValue());
+        return data;
+    }
+
+    @Override
+    public void writeDouble(ByteArrayBuilder b, double value) {
+        b.put(NUMBER);
+        b.put(DOUBLE);
+        b.putDouble(value);
+    }
+
+    @Override
+    public void writeLong(ByteArrayBuilder b, long value) {
+        b.put(NUMBER);
+        b.put(LONG);
+        b.putLong(value);
+    }
+
+    @Override
+    public void writeBoolean(ByteArrayBuilder b, boolean value) {
+        b.put(BOOL);
+        b.putBoolean(value);
+    }
+
+    @Override
+    public boolean isDouble(byte[] data, int off, int len) {
+        return len > 0 && isDouble(data[off], data, off + 1, len - 1);
+    }
+
+    /**
+     * @return true if toDouble can return the value of a sample of the given type, whose data after the type is at the
+     * given offset.
+     */
+    static boolean isDouble(byte type, byte[] data, int off, int len) {
+        if (type == BOOL) {
+            return len == 1;
+        }
+        if (len < 2 || type != NUMBER) {
+            return false;
+        }
+        switch (data[off]) {
+            case BYTE:
+                return len == 2;
+            case SHORT:
+                return len == 3;
+            case INT:
+            case FLOAT:
+                return len == 5;
+            case LONG:
+            case DOUBLE:
+                return len == 9;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public int getNumericType(byte[] data, int off, int len) {
+        if (len < 3 || data[off] != NUMBER) {
+            return -1;
+        }
+
+        byte type = data[off + 1];
+        switch (type) {
+            case BYTE:
+                return len == 3 ? type : -1;
+            case SHORT:
+                return len == 4 ? type : -1;
+            case INT:
+                return len == 6 ? type : -1;
+            case LONG: {
+                if (len != 10) {
+                    return -1;
+                }
+                // Only longs that a double holds exactly.
+                long l = getLong(data, off + 2);
+                return l >= -(1L << 53) && l <= 1L << 53 ? type : -1;
+            }
+            case FLOAT: {
+                if (len != 6) {
+                    return -1;
+                }
+                // NaNs with other than the canonical bits would not survive the conversion.
+                int bits = getInt(data, off + 2);
+                return Float.floatToIntBits((float) (double) Float.intBitsToFloat(bits)) == bits ? type : -1;
+            }
+            case DOUBLE: {
+                if (len != 10) {
+                    return -1;
+                }
+                long bits = getLong(data, off + 2);
+                return Double.doubleToLongBits(Double.longBitsToDouble(bits)) == bits ? type : -1;
+            }
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public double toDouble(byte[] data, int off, int len) {
+        return toDouble(data[off], data, off + 1);
+    }
+
+    static double toDouble(byte type, byte[] data, int off) {
+        if (type == BOOL) {
+            return data[off] != 0 ? 1 : 0;
+        }
+        off++;
+        switch (data[off - 1]) {
+            case BYTE:
+                return data[off];
+            case SHORT:
+                return (short) ((data[off] & 0xff) << 8 | (data[off + 1] & 0xff));
+            case INT:
+                return getInt(data, off);
+            case LONG:
+                return getLong(data, off);
+            case FLOAT:
+                return Float.intBitsToFloat(getInt(data, off));
+            default:
+                return Double.longBitsToDouble(getLong(data, off));
+        }
+    }
+
+    @Override
+    public void fromDouble(ByteArrayBuilder b, int numericType, double value) {
+        b.put(NUMBER);
+        b.put((byte) numericType);
+        switch (numericType) {
+            case BYTE:
+                b.put((byte) value);
+                break;
+            case SHORT:
+                b.putShort((short) value);
+                break;
+            case INT:
+                b.putInt((int) value);
+                break;
+            case LONG:
+                b.putLong((long) value);
+                break;
+            case FLOAT:
+                b.putFloat((float) value);
+                break;
+            default:
+                b.putDouble(value);
+        }
+    }
+
+    private static int getInt(byte[] data, int off) {
+        return (data[off] & 0xff) << 24 | (data[off + 1] & 0xff) << 16 | (data[off + 2] & 0xff) << 8
+                | (data[off + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] data, int off) {
+        return (getInt(data, off) & 0xffffffffL) << 32 | (getInt(data, off + 4) & 0xffffffffL);
+    }
 }
@@ -0,0 +1,8 @@
+package org.etsdb;
+
+/**
+ * The functions of the numeric samples in an interval that an aggregation query returns. See Database.aggregate.
+ */
+public enum Aggregate {
+    MIN, MAX, AVG, FIRST, LAST, COUNT, SUM
+}
@@ -0,0 +1,12 @@
+package org.etsdb;
+
+/**
+ * Receives the intervals of an aggregation query. See Database.aggregate.
+ */
+public interface AggregateCallback {
+    /**
+     * @param ts     the start of the interval.
+     * @param values the values of the requested aggregates, in the order in which they were requested.
+     */
+    void interval(String seriesId, long ts, double[] values);
+}
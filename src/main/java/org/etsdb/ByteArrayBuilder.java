@@ -38,6 +38,15 @@ public class ByteArrayBuilder {
         this.writeOffset = buffer.length;
     }
 
+    /**
+     * Reads the given part of the buffer, without copying it.
+     */
+    public ByteArrayBuilder(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.readOffset = offset;
+        this.writeOffset = offset + length;
+    }
+
     public void clear() {
         writeOffset = 0;
         readOffset = 0;
@@ -0,0 +1,45 @@
+package org.etsdb;
+
+import java.io.Closeable;
+
+/**
+ * The samples of a series in a time range, which are read from the database in batches as they are iterated. See
+ * Database.openCursor. The database is only locked while a batch is read, so a cursor can be iterated at the caller's
+ * pace and left open without holding up writers. Samples that are written or deleted in the range while the cursor is
+ * open may or may not be returned. A cursor must not be used by more than one thread at a time.
+ *
+ * @param <T> the class of the values of the samples.
+ */
+public interface Cursor<T> extends Closeable {
+    /**
+     * Moves to the next sample.
+     *
+     * @return false if there are no more samples in the range.
+     */
+    boolean next();
+
+    String getSeriesId();
+
+    /**
+     * @return the time stamp of the current sample.
+     */
+    long getTimestamp();
+
+    /**
+     * @return the value of the current sample.
+     */
+    T getValue();
+
+    /**
+     * Returns a token with which Database.openCursor continues after the current sample, or from the start of the
+     * range if next has not been called yet. Tokens are strings, so that they can be handed to clients, and stay valid
+     * while the database is closed and reopened.
+     */
+    String getContinuationToken();
+
+    /**
+     * Releases the cursor's buffer. Nothing is locked between batches, so a cursor that is not closed does no harm.
+     */
+    @Override
+    void close();
+}
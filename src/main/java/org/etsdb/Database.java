@@ -9,8 +9,6 @@ import java.util.List;
 /**
  * TODO seriesIds must be valid file names. Consider adding code to convert invalid characters to something valid.
  * TODO consider a flushing scheme that writes to files according to a set schedule, e.g. one file per second.
- * TODO add a query that returns the given time range, plus the pvts immediately before and after the range. Currently
- * this is three queries.
  * <p>
  * watch grep ^Cached /proc/meminfo # Page Cache size
  * watch grep -A 1 dirty /proc/vmstat # Dirty Pages and writeback to disk activity
@@ -25,12 +23,115 @@ public interface Database<T> {
 
     void write(String seriesId, long ts, T value);
 
+    /**
+     * Writes a numeric sample without creating a value object (see PrimitiveSerializer.writeDouble).
+     *
+     * @throws IllegalStateException if the serializer is not a PrimitiveSerializer.
+     */
+    void writeDouble(String seriesId, long ts, double value);
+
+    void writeLong(String seriesId, long ts, long value);
+
+    void writeBoolean(String seriesId, long ts, boolean value);
+
+    /**
+     * Writes the samples of a series in one call. The arrays must have the same length.
+     */
+    void write(String seriesId, long[] ts, T[] values);
+
+    /**
+     * Writes the samples of any number of series in one call.
+     */
+    void write(WriteBatch<T> batch);
+
     void query(String seriesId, long fromTs, long toTs, final QueryCallback<T> cb);
 
     void query(String seriesId, long fromTs, long toTs, int limit, final QueryCallback<T> cb);
 
     void query(String seriesId, long fromTs, long toTs, int limit, boolean reverse, final QueryCallback<T> cb);
 
+    /**
+     * Returns the samples in the range as views of the read buffer (see Serializer.view) rather than deserialized
+     * copies, so that a long query does not allocate per sample. A view is only valid until the callback returns, and
+     * may be reused for the next sample, so the callback must copy what it keeps.
+     */
+    void queryViews(String seriesId, long fromTs, long toTs, int limit, boolean reverse, QueryCallback<T> cb);
+
+    /**
+     * Returns the numeric samples in the range as doubles, converted straight from the stored data by the serializer
+     * (see NumericSerializer.toDouble). Samples that are not numeric are skipped, but count towards the limit.
+     *
+     * @throws IllegalStateException if the serializer is not a NumericSerializer.
+     */
+    void queryDoubles(String seriesId, long fromTs, long toTs, int limit, boolean reverse, DoubleQueryCallback cb);
+
+    /**
+     * Returns the samples in the range, from inclusive to exclusive, preceded by the last sample before the range and
+     * followed by the first sample at or after its end, if there are any, e.g. to draw a step chart up to the edges of
+     * the range. The samples are read in one forward scan where possible, rather than with separate queries.
+     */
+    void queryWithBounds(String seriesId, long fromTs, long toTs, QueryCallback<T> cb);
+
+    /**
+     * Returns the given aggregates of the numeric samples in the range, from inclusive to exclusive, per interval of the
+     * given length in milliseconds. The samples are folded into the intervals as they are read, without being
+     * deserialized (see NumericSerializer.toDouble). Intervals without samples are returned according to the gap fill.
+     * If a rollup tier's interval divides the given one (see DbConfig.rollupIntervals), the records of the coarsest
+     * such tier are read in place of the samples that they cover.
+     *
+     * @throws IllegalStateException if the serializer is not a NumericSerializer.
+     */
+    void aggregate(String seriesId, long fromTs, long toTs, long interval, Aggregate[] aggregates, GapFill gapFill,
+            AggregateCallback cb);
+
+    /**
+     * Returns at most the given number of the samples in the range, from inclusive to exclusive, selected with the
+     * given method to draw the series in about a quarter as many pixel columns (M4) or as a line of that many points
+     * (LTTB). The range is narrowed to the time range of the series first, so that a longer range does not leave
+     * columns empty. The samples are selected as they are read, without being deserialized (see
+     * NumericSerializer.toDouble), and samples that are not numeric are skipped. The maximum number of points must be
+     * at least 4.
+     *
+     * @throws IllegalStateException if the serializer is not a NumericSerializer.
+     */
+    void downsample(String seriesId, long fromTs, long toTs, int maxPoints, Downsampling method, QueryCallback<T> cb);
+
+    /**
+     * Returns the samples of the series in the range, from inclusive to exclusive, in time stamp order across all of
+     * the series, up to the limit in total. Samples with the same time stamp are returned in the order of the series in
+     * the list. The callback is called without the database being locked.
+     */
+    void query(List<String> seriesIds, long fromTs, long toTs, int limit, QueryCallback<T> cb);
+
+    /**
+     * Like query, but if parallel is true the series are read and decoded ahead of the merge in the shared thread
+     * pool, one batch per series at a time.
+     */
+    void query(List<String> seriesIds, long fromTs, long toTs, int limit, boolean parallel, QueryCallback<T> cb);
+
+    /**
+     * Opens a cursor over the samples in the range, from inclusive to exclusive, like query. The samples are read in
+     * batches as the cursor is iterated, and the database is only locked while a batch is read.
+     */
+    Cursor<T> openCursor(String seriesId, long fromTs, long toTs, boolean reverse);
+
+    /**
+     * Opens a cursor that continues after the sample at which the token was taken. See Cursor.getContinuationToken.
+     *
+     * @throws IllegalArgumentException if the token is not valid.
+     */
+    Cursor<T> openCursor(String continuationToken);
+
+    /**
+     * Returns the first sample of the series to the callback, if the series has any samples.
+     */
+    void queryFirst(String seriesId, final QueryCallback<T> cb);
+
+    /**
+     * Returns the last sample of the series to the callback, if the series has any samples.
+     */
+    void queryLast(String seriesId, final QueryCallback<T> cb);
+
     long count(String seriesId, long fromTs, long toTs);
 
     List<String> getSeriesIds();
@@ -88,14 +189,46 @@ public interface Database<T> {
 
     long getForcedClose();
 
+    long getFileHandleHits();
+
+    void setFileHandleHitsHandler(Handler<Long> handler);
+
+    long getFileHandleMisses();
+
+    void setFileHandleMissesHandler(Handler<Long> handler);
+
+    long getFileHandleEvictions();
+
+    void setFileHandleEvictionsHandler(Handler<Long> handler);
+
     int getLastFlushMillis();
 
     void setLastFlushMillisHandler(Handler<Integer> handler);
 
+    int getLastCommitSize();
+
+    void setLastCommitSizeHandler(Handler<Integer> handler);
+
+    int getLastCommitMillis();
+
+    void setLastCommitMillisHandler(Handler<Integer> handler);
+
     int getQueueSize();
 
     void setQueueSizeHandler(Handler<Integer> handler);
 
+    long getQueueBytes();
+
+    void setQueueBytesHandler(Handler<Long> handler);
+
+    long getQueueBlockedMillis();
+
+    void setQueueBlockedMillisHandler(Handler<Long> handler);
+
+    long getQueueDrops();
+
+    void setQueueDropsHandler(Handler<Long> handler);
+
     int getOpenShards();
 
     void setOpenShardsHandler(Handler<Integer> handler);
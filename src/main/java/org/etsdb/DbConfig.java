@@ -20,6 +20,10 @@ public class DbConfig {
      */
     private int shardStalePeriod = 1000 * 60 * 60;
 
+    /**
+     * The maximum number of data file handles that are kept open for writes and queries. The least recently used are
+     * closed when it is exceeded. 0 for no limit.
+     */
     private int maxOpenFiles = 500;
     private boolean ignoreBackdates = false;
     private int backdateStartDelay = 5000;
@@ -68,6 +72,108 @@ public class DbConfig {
      */
     private int queueDiscardQueueSize = 1000000;
 
+    /**
+     * The memory in bytes that the write queues of all of the databases in the process may hold together. If 0, only
+     * the discard queue size limits the queue.
+     */
+    private long queueMemoryBudget = 128 * 1024 * 1024;
+
+    /**
+     * What is done with a write when the write queues are over the memory budget, or the database's queue holds the
+     * discard queue size. See QueueOverflowPolicy.
+     */
+    private QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.FLUSH;
+
+    /**
+     * With the BLOCK overflow policy, the maximum time in milliseconds that a writer waits for room in the queue
+     * before its write is dropped.
+     */
+    private int queueBlockTimeout = 10000;
+
+    /**
+     * If greater than 0, writes are handed to this number of partition threads, which write them in batches, instead
+     * of being written in the calling thread. Each series is written by one partition, so that writers do not contend
+     * on series and shard locks. Written samples become visible to queries once their partition has written them.
+     */
+    private int ingestPartitions = 0;
+
+    /**
+     * The number of samples that each partition can hold before callers have to wait for it to catch up. Rounded up
+     * to a power of 2.
+     */
+    private int ingestBufferSize = 8192;
+
+    /**
+     * If true, queued writes are also appended to a write-ahead log, so that they are not lost if the process dies
+     * before the queue is flushed. The log is replayed when the database is next opened.
+     */
+    private boolean writeAheadLog = true;
+
+    /**
+     * The size in bytes at which the write-ahead log moves on to a new segment file. Segments are deleted once all of
+     * the writes in them have been flushed from the queue.
+     */
+    private int walSegmentSize = 16 * 1024 * 1024;
+
+    /**
+     * The interval in milliseconds at which the write-ahead log is forced to disk. Writes within an interval can be
+     * lost if the machine fails, but not if only the process dies.
+     */
+    private int walSyncInterval = 1000;
+
+    /**
+     * If true, runs of numeric samples are stored in compressed blocks when shard files are written in bulk, i.e. when
+     * the write queue is flushed, when backdates are inserted or samples are deleted, and when a shard that was written
+     * to directly becomes stale. The serializer determines which samples are numeric, so it must be a NumericSerializer
+     * (see NumericSerializer.getNumericType).
+     */
+    private boolean numericBlockEncoding = false;
+
+    /**
+     * Backdates that fall within a shard's existing data are appended to an out-of-order segment file instead of
+     * rewriting the shard's data file. The segment is merged into the data file by the flush process once it exceeds
+     * this number of bytes, or when the shard becomes stale. If 0, backdates are always written by rewriting the data
+     * file.
+     */
+    private int outOfOrderSegmentSize = 1024 * 1024;
+
+    /**
+     * How writes are made durable when the write queue is not used. See Durability.
+     */
+    private Durability durability = Durability.WRITE;
+
+    /**
+     * With GROUP_COMMIT durability, the maximum time in milliseconds that a write is buffered before it is flushed.
+     */
+    private int groupCommitInterval = 100;
+
+    /**
+     * With GROUP_COMMIT durability, the number of buffered writes across all shards that triggers a commit before the
+     * interval has passed.
+     */
+    private int groupCommitSize = 10000;
+
+    /**
+     * With GROUP_COMMIT or OS durability, the interval in milliseconds at which written data is forced to disk with
+     * FileChannel.force. If 0, forcing is left to the OS.
+     */
+    private int forceInterval = 0;
+
+    /**
+     * The intervals in milliseconds of the rollup tiers, in ascending order. The numeric samples of each shard are
+     * rolled up into the count, minimum, maximum, sum, first and last value of each interval as they are written, and
+     * Database.aggregate uses the coarsest tier whose interval divides the requested one instead of reading the
+     * samples. If empty, no rollups are kept.
+     */
+    private long[] rollupIntervals = {60000, 3600000, 86400000};
+
+    /**
+     * The number of bytes of memory used to cache the last samples of recently queried series, so that queryLast and
+     * getTimeRange do not need to read the series' files. The least recently used series are evicted. If 0, last
+     * samples are not cached.
+     */
+    private long lastValueCacheSize = 8 * 1024 * 1024;
+
     public void validate() throws ConfigException {
         if (fileLockCheckInterval <= 0)
             throw new ConfigException("fileLockCheckInterval must be greater than 0");
@@ -86,6 +192,42 @@ public class DbConfig {
         if (backdateStartDelay < 0)
             throw new ConfigException("backdateStartDelay cannot be negative");
 
+        if (outOfOrderSegmentSize < 0)
+            throw new ConfigException("outOfOrderSegmentSize cannot be negative");
+
+        if (durability == null)
+            throw new ConfigException("durability cannot be null");
+
+        if (durability == Durability.GROUP_COMMIT) {
+            if (groupCommitInterval <= 0)
+                throw new ConfigException("groupCommitInterval must be greater than 0");
+
+            if (groupCommitSize <= 0)
+                throw new ConfigException("groupCommitSize must be greater than 0");
+        }
+
+        if (forceInterval < 0)
+            throw new ConfigException("forceInterval cannot be negative");
+
+        if (rollupIntervals == null)
+            throw new ConfigException("rollupIntervals cannot be null");
+
+        for (int i = 0; i < rollupIntervals.length; i++) {
+            if (rollupIntervals[i] <= 0)
+                throw new ConfigException("rollupIntervals must be greater than 0");
+            if (i > 0 && rollupIntervals[i] <= rollupIntervals[i - 1])
+                throw new ConfigException("rollupIntervals must be in ascending order");
+        }
+
+        if (lastValueCacheSize < 0)
+            throw new ConfigException("lastValueCacheSize cannot be negative");
+
+        if (ingestPartitions < 0)
+            throw new ConfigException("ingestPartitions cannot be negative");
+
+        if (ingestPartitions > 0 && ingestBufferSize <= 0)
+            throw new ConfigException("ingestBufferSize must be greater than 0");
+
         if (useWriteQueue) {
             if (queueExpireMinimum < 0)
                 throw new ConfigException("queueExpireMinimum cannot be negative");
@@ -101,6 +243,23 @@ public class DbConfig {
 
             if (queueDiscardQueueSize < queueMaxQueueSize)
                 throw new ConfigException("queueDiscardQueueSize must be greater than queueMaxQueueSize");
+
+            if (queueMemoryBudget < 0)
+                throw new ConfigException("queueMemoryBudget cannot be negative");
+
+            if (queueOverflowPolicy == null)
+                throw new ConfigException("queueOverflowPolicy cannot be null");
+
+            if (queueBlockTimeout < 0)
+                throw new ConfigException("queueBlockTimeout cannot be negative");
+
+            if (writeAheadLog) {
+                if (walSegmentSize <= 0)
+                    throw new ConfigException("walSegmentSize must be greater than 0");
+
+                if (walSyncInterval <= 0)
+                    throw new ConfigException("walSyncInterval must be greater than 0");
+            }
         }
     }
 
@@ -231,4 +390,132 @@ public class DbConfig {
     public void setQueueDiscardQueueSize(int queueDiscardQueueSize) {
         this.queueDiscardQueueSize = queueDiscardQueueSize;
     }
+
+    public long getQueueMemoryBudget() {
+        return queueMemoryBudget;
+    }
+
+    public void setQueueMemoryBudget(long queueMemoryBudget) {
+        this.queueMemoryBudget = queueMemoryBudget;
+    }
+
+    public QueueOverflowPolicy getQueueOverflowPolicy() {
+        return queueOverflowPolicy;
+    }
+
+    public void setQueueOverflowPolicy(QueueOverflowPolicy queueOverflowPolicy) {
+        this.queueOverflowPolicy = queueOverflowPolicy;
+    }
+
+    public int getQueueBlockTimeout() {
+        return queueBlockTimeout;
+    }
+
+    public void setQueueBlockTimeout(int queueBlockTimeout) {
+        this.queueBlockTimeout = queueBlockTimeout;
+    }
+
+    public boolean isNumericBlockEncoding() {
+        return numericBlockEncoding;
+    }
+
+    public void setNumericBlockEncoding(boolean numericBlockEncoding) {
+        this.numericBlockEncoding = numericBlockEncoding;
+    }
+
+    public int getOutOfOrderSegmentSize() {
+        return outOfOrderSegmentSize;
+    }
+
+    public void setOutOfOrderSegmentSize(int outOfOrderSegmentSize) {
+        this.outOfOrderSegmentSize = outOfOrderSegmentSize;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public int getGroupCommitInterval() {
+        return groupCommitInterval;
+    }
+
+    public void setGroupCommitInterval(int groupCommitInterval) {
+        this.groupCommitInterval = groupCommitInterval;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public void setGroupCommitSize(int groupCommitSize) {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public int getForceInterval() {
+        return forceInterval;
+    }
+
+    public void setForceInterval(int forceInterval) {
+        this.forceInterval = forceInterval;
+    }
+
+    public long[] getRollupIntervals() {
+        return rollupIntervals;
+    }
+
+    public void setRollupIntervals(long[] rollupIntervals) {
+        this.rollupIntervals = rollupIntervals;
+    }
+
+    public long getLastValueCacheSize() {
+        return lastValueCacheSize;
+    }
+
+    public void setLastValueCacheSize(long lastValueCacheSize) {
+        this.lastValueCacheSize = lastValueCacheSize;
+    }
+
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public void setWriteAheadLog(boolean writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    public int getWalSegmentSize() {
+        return walSegmentSize;
+    }
+
+    public void setWalSegmentSize(int walSegmentSize) {
+        this.walSegmentSize = walSegmentSize;
+    }
+
+    public int getWalSyncInterval() {
+        return walSyncInterval;
+    }
+
+    public void setWalSyncInterval(int walSyncInterval) {
+        this.walSyncInterval = walSyncInterval;
+    }
+
+    public int getIngestPartitions() {
+        return ingestPartitions;
+    }
+
+    public void setIngestPartitions(int ingestPartitions) {
+        this.ingestPartitions = ingestPartitions;
+    }
+
+    public int getIngestBufferSize() {
+        return ingestBufferSize;
+    }
+
+    public void setIngestBufferSize(int ingestBufferSize) {
+        this.ingestBufferSize = ingestBufferSize;
+    }
 }
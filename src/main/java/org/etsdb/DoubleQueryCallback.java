@@ -0,0 +1,9 @@
+package org.etsdb;
+
+/**
+ * Receives the numeric samples of a query as primitive values, without the samples being deserialized into objects.
+ * See Database.queryDoubles.
+ */
+public interface DoubleQueryCallback {
+    void sample(String seriesId, long ts, double value);
+}
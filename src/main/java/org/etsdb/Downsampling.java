@@ -0,0 +1,22 @@
+package org.etsdb;
+
+/**
+ * How a downsampling query selects the samples that it returns. Both methods return original samples, in time order,
+ * and only consider numeric samples.
+ */
+public enum Downsampling {
+    /**
+     * The range is divided into columns of equal length, a quarter of the maximum number of points of them, and the
+     * first, last, minimum and maximum samples of each column are returned. A line drawn through them has the same
+     * pixels as one drawn through all of the samples, if each column is one pixel wide.
+     */
+    M4,
+
+    /**
+     * Largest-Triangle-Three-Buckets. The first and last samples are returned, and the range is divided into buckets
+     * of equal length, two less than the maximum number of points of them, of which one sample each is returned: the
+     * one that forms the largest triangle with the sample returned before it and the average of the samples in the
+     * next bucket. This keeps the visual shape of the series with fewer points than M4.
+     */
+    LTTB
+}
@@ -0,0 +1,23 @@
+package org.etsdb;
+
+/**
+ * How direct writes, i.e. writes that are not queued, are made durable.
+ */
+public enum Durability {
+    /**
+     * Every write is flushed to its file before it returns.
+     */
+    WRITE,
+
+    /**
+     * Writes are buffered, and the buffers of all shards are flushed together every group commit interval, or sooner
+     * if the group commit size is reached.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Writes are buffered, and written out when the buffers fill up or the shards are closed. If a force interval is
+     * given, the buffers are also flushed and forced to disk at that interval.
+     */
+    OS
+}
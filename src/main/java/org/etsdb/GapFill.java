@@ -0,0 +1,23 @@
+package org.etsdb;
+
+/**
+ * How an aggregation query returns the intervals without samples that lie between intervals with samples. Intervals
+ * before the first and after the last interval with samples are not returned. In filled intervals, COUNT and SUM are
+ * 0.
+ */
+public enum GapFill {
+    /**
+     * Empty intervals are not returned.
+     */
+    NONE,
+
+    /**
+     * Empty intervals repeat the values of the interval before them.
+     */
+    PREVIOUS,
+
+    /**
+     * The values of empty intervals are interpolated between the intervals on either side, by interval start time.
+     */
+    LINEAR
+}
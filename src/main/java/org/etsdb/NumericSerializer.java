@@ -0,0 +1,36 @@
+package org.etsdb;
+
+/**
+ * A serializer of data that is numeric, at least in part. The database uses these methods to store samples in
+ * compressed numeric blocks (see DbConfig.setNumericBlockEncoding), to keep the minimum, maximum and sum of shards and
+ * their rollups, and to read samples as doubles without deserializing them (see Database.queryDoubles, aggregate and
+ * downsample), all of which require the database's serializer to be a NumericSerializer.
+ */
+abstract public class NumericSerializer<T> extends Serializer<T> {
+    /**
+     * A sample can only be stored in a numeric block if fromDouble will recreate exactly the same bytes from its double
+     * value.
+     *
+     * @return a type identifier between 0 and 255 that fromDouble uses to recreate the serialized form, or -1 if the
+     * given serialized sample cannot be stored as a double.
+     */
+    abstract public int getNumericType(byte[] data, int off, int len);
+
+    /**
+     * Returns the value of the given serialized sample. Only called for samples for which isDouble is true.
+     */
+    abstract public double toDouble(byte[] data, int off, int len);
+
+    /**
+     * Writes the serialized form of the given value, as it was before it was converted by toDouble.
+     */
+    abstract public void fromDouble(ByteArrayBuilder b, int numericType, double value);
+
+    /**
+     * @return true if toDouble can return the value of the given serialized sample. By default the samples that have a
+     * numeric type.
+     */
+    public boolean isDouble(byte[] data, int off, int len) {
+        return getNumericType(data, off, len) != -1;
+    }
+}
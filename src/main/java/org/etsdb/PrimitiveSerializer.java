@@ -0,0 +1,16 @@
+package org.etsdb;
+
+/**
+ * A numeric serializer that can also serialize primitive values without value objects being created for them. The
+ * database's serializer must be a PrimitiveSerializer for Database.writeDouble, writeLong and writeBoolean.
+ */
+abstract public class PrimitiveSerializer<T> extends NumericSerializer<T> {
+    /**
+     * Writes the serialized form of a sample with the given value, as toByteArray would.
+     */
+    abstract public void writeDouble(ByteArrayBuilder b, double value);
+
+    abstract public void writeLong(ByteArrayBuilder b, long value);
+
+    abstract public void writeBoolean(ByteArrayBuilder b, boolean value);
+}
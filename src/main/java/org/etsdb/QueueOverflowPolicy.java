@@ -0,0 +1,22 @@
+package org.etsdb;
+
+/**
+ * What is done with a write when the write queue is over its memory budget, or holds the discard queue size.
+ */
+public enum QueueOverflowPolicy {
+    /**
+     * The writer waits for the queues to be written out, for up to the queue block timeout, after which the write is
+     * dropped. The flush process of every database is started early to make room.
+     */
+    BLOCK,
+
+    /**
+     * The writer writes out the queues of the database's largest shards before its write is queued.
+     */
+    FLUSH,
+
+    /**
+     * The write is dropped. Drops are counted by series, and logged by the next run of the flush process.
+     */
+    DROP
+}
@@ -4,4 +4,21 @@ abstract public class Serializer<T> {
     abstract public void toByteArray(ByteArrayBuilder b, T obj, long ts);
 
     abstract public T fromByteArray(ByteArrayBuilder b, long ts);
+
+    /**
+     * Returns the sample as a view of the read buffer, for Database.queryViews. The view is only valid until the
+     * callback that it is passed to returns, and the view that was returned for the previous sample of the query, or
+     * null, is passed in to be reused. By default the sample is deserialized with fromByteArray.
+     */
+    public T view(ByteArrayBuilder b, long ts, T previous) {
+        return fromByteArray(b, ts);
+    }
+
+    /**
+     * Returns a sample that can be kept after the callback returns, with only as much of the view as that needs, e.g.
+     * for the batches of a cursor. By default the view is returned, since the default view is deserialized.
+     */
+    public T detach(T view) {
+        return view;
+    }
 }
@@ -0,0 +1,70 @@
+package org.etsdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of samples for any number of series, to be written with Database.write(WriteBatch). The samples are grouped
+ * by series as they are added, and the samples of each series are written in the order in which they were added.
+ *
+ * @param <T> the type of value that is stored in the database.
+ */
+public class WriteBatch<T> {
+    private final Map<String, Samples<T>> series = new LinkedHashMap<>();
+    private int size;
+
+    public WriteBatch<T> add(String seriesId, long ts, T value) {
+        Samples<T> samples = series.get(seriesId);
+        if (samples == null) {
+            samples = new Samples<>();
+            series.put(seriesId, samples);
+        }
+        samples.add(ts, value);
+        size++;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        series.clear();
+        size = 0;
+    }
+
+    public Set<String> getSeriesIds() {
+        return series.keySet();
+    }
+
+    /**
+     * @return the timestamps of the series' samples. The array may be longer than the number of samples.
+     */
+    public long[] getTimestamps(String seriesId) {
+        return series.get(seriesId).ts;
+    }
+
+    public List<T> getValues(String seriesId) {
+        return series.get(seriesId).values;
+    }
+
+    private static class Samples<T> {
+        long[] ts = new long[16];
+        final List<T> values = new ArrayList<>();
+
+        void add(long ts, T value) {
+            if (values.size() == this.ts.length)
+                this.ts = Arrays.copyOf(this.ts, this.ts.length << 1);
+            this.ts[values.size()] = ts;
+            values.add(value);
+        }
+    }
+}
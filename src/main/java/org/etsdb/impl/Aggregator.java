@@ -0,0 +1,161 @@
+package org.etsdb.impl;
+
+import org.etsdb.Aggregate;
+import org.etsdb.AggregateCallback;
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.GapFill;
+import org.etsdb.NumericSerializer;
+
+/**
+ * Folds the samples of a query into intervals as they are read by the shard scan. The numeric samples are converted
+ * straight from the read buffer by the serializer, so no value objects are created, and only one interval is held at a
+ * time. Samples that are not numeric are skipped. Intervals are aligned to multiples of the interval length since the
+ * epoch, so that the intervals of different queries line up. This also lets the records of a rollup tier whose interval
+ * divides the query's be added in place of their samples.
+ */
+class Aggregator implements RawQueryCallback {
+    private final NumericSerializer<?> serializer;
+    private final long interval;
+    private final Aggregate[] aggregates;
+    private final GapFill gapFill;
+    private final AggregateCallback cb;
+
+    // The current interval.
+    private long start;
+    private long count;
+    private double min;
+    private double max;
+    private double sum;
+    private double first;
+    private double last;
+
+    // The last interval that was returned, for filling gaps.
+    private long previousStart;
+    private double[] previous;
+
+    Aggregator(NumericSerializer<?> serializer, long interval, Aggregate[] aggregates, GapFill gapFill,
+            AggregateCallback cb) {
+        this.serializer = serializer;
+        this.interval = interval;
+        this.aggregates = aggregates;
+        this.gapFill = gapFill;
+        this.cb = cb;
+    }
+
+    @Override
+    public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+        byte[] data = b.getBuffer();
+        int off = b.getReadOffset();
+        int len = b.getAvailable();
+        if (!serializer.isDouble(data, off, len)) {
+            return;
+        }
+        double value = serializer.toDouble(data, off, len);
+
+        long intervalStart = Math.floorDiv(ts, interval) * interval;
+        if (count > 0 && intervalStart != start) {
+            finishInterval(seriesId);
+        }
+
+        if (count == 0) {
+            start = intervalStart;
+            min = max = first = value;
+            sum = 0;
+        } else if (value < min) {
+            min = value;
+        } else if (value > max) {
+            max = value;
+        }
+        sum += value;
+        last = value;
+        count++;
+    }
+
+    /**
+     * Adds the samples of a rollup record, which must be within one interval, in time order with the samples.
+     */
+    void addBucket(String seriesId, ShardRollups.Bucket bucket) {
+        long intervalStart = Math.floorDiv(bucket.start, interval) * interval;
+        if (count > 0 && intervalStart != start) {
+            finishInterval(seriesId);
+        }
+
+        if (count == 0) {
+            start = intervalStart;
+            min = bucket.min;
+            max = bucket.max;
+            first = bucket.first;
+            sum = 0;
+        } else {
+            min = Math.min(min, bucket.min);
+            max = Math.max(max, bucket.max);
+        }
+        sum += bucket.sum;
+        last = bucket.last;
+        count += bucket.count;
+    }
+
+    /**
+     * Returns the last interval. Called when the query is done.
+     */
+    void finish(String seriesId) {
+        if (count > 0) {
+            finishInterval(seriesId);
+        }
+    }
+
+    private void finishInterval(String seriesId) {
+        double[] values = new double[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            values[i] = getValue(aggregates[i]);
+        }
+
+        if (previous != null && gapFill != GapFill.NONE) {
+            for (long ts = previousStart + interval; ts < start; ts += interval) {
+                cb.interval(seriesId, ts, fill(ts, values));
+            }
+        }
+        cb.interval(seriesId, start, values);
+
+        previous = values;
+        previousStart = start;
+        count = 0;
+    }
+
+    private double getValue(Aggregate aggregate) {
+        switch (aggregate) {
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            case AVG:
+                return sum / count;
+            case FIRST:
+                return first;
+            case LAST:
+                return last;
+            case COUNT:
+                return count;
+            default:
+                return sum;
+        }
+    }
+
+    /**
+     * @return the values of an empty interval between the previous interval and the given values of the current one.
+     */
+    private double[] fill(long ts, double[] next) {
+        double[] values = new double[aggregates.length];
+        double fraction = (double) (ts - previousStart) / (start - previousStart);
+        for (int i = 0; i < aggregates.length; i++) {
+            if (aggregates[i] == Aggregate.COUNT || aggregates[i] == Aggregate.SUM) {
+                values[i] = 0;
+            } else if (gapFill == GapFill.PREVIOUS) {
+                values[i] = previous[i];
+            } else {
+                values[i] = previous[i] + (next[i] - previous[i]) * fraction;
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,107 @@
+package org.etsdb.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A buffered input stream over a pooled reader, which reads with positional reads so that concurrent queries of the
+ * file can share the reader. Closing the stream releases the reader.
+ */
+class ChannelInputStream extends InputStream {
+    private final FileHandlePool.Reader reader;
+    private final ByteBuffer buffer = ByteBuffer.allocate(32768);
+    /**
+     * The position in the file of the end of the buffered bytes.
+     */
+    private long position;
+    private long markPosition = -1;
+    private boolean closed;
+
+    ChannelInputStream(FileHandlePool.Reader reader, long startPosition) {
+        this.reader = reader;
+        position = startPosition;
+        buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (n <= buffer.remaining()) {
+            buffer.position(buffer.position() + (int) n);
+            return n;
+        }
+        // Skip the rest of the buffer and move the read position, without checking the length of the file. Reads
+        // after the end of the file return the EOF.
+        position += n - buffer.remaining();
+        buffer.limit(0);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        markPosition = position - buffer.remaining();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (markPosition == -1) {
+            throw new IOException("Mark not set");
+        }
+        position = markPosition;
+        buffer.limit(0);
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            reader.release();
+        }
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int count = reader.read(buffer, position);
+        if (count <= 0) {
+            buffer.limit(0);
+            return false;
+        }
+        position += count;
+        buffer.flip();
+        return true;
+    }
+}
@@ -19,9 +19,26 @@ class ChecksumInputStream extends InputStream implements ChecksumInput {
     private byte markSum;
 
     ChecksumInputStream(File dataFile) {
+        this(dataFile, 0);
+    }
+
+    /**
+     * @param startPosition the position in the file at which to start reading. This must be the start of a record.
+     */
+    ChecksumInputStream(File dataFile, long startPosition) {
         if (dataFile.exists()) {
             try {
-                this.delegate = new BufferedInputStream(new FileInputStream(dataFile), 32768);
+                FileInputStream in = new FileInputStream(dataFile);
+                if (startPosition > 0) {
+                    try {
+                        in.getChannel().position(startPosition);
+                    } catch (IOException e) {
+                        Utils.closeQuietly(in);
+                        throw new RuntimeException(e);
+                    }
+                    position = startPosition;
+                }
+                this.delegate = new BufferedInputStream(in, 32768);
             } catch (FileNotFoundException e) {
                 // This should not happen because we just checked that the file exists.
                 throw new RuntimeException(e);
@@ -32,6 +49,15 @@ class ChecksumInputStream extends InputStream implements ChecksumInput {
         }
     }
 
+    /**
+     * @param delegate      a buffered input that is already at the start position.
+     * @param startPosition the position in the file at which the delegate starts. This must be the start of a record.
+     */
+    ChecksumInputStream(InputStream delegate, long startPosition) {
+        this.delegate = delegate;
+        position = startPosition;
+    }
+
     @Override
     public boolean checkSum() throws IOException {
         if (eof) {
@@ -1,15 +1,31 @@
 package org.etsdb.impl;
 
 import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 class ChecksumOutputStream extends OutputStream {
     private final OutputStream delegate;
+    /**
+     * The channel of the file being written, if the delegate is a file, so that writes can be forced to disk.
+     */
+    private final FileChannel channel;
 
     private byte sum;
+    private long position;
 
     ChecksumOutputStream(OutputStream delegate) {
+        this(delegate, 0);
+    }
+
+    /**
+     * @param position the number of bytes already in the underlying file, i.e. the position of the next write.
+     */
+    ChecksumOutputStream(OutputStream delegate, long position) {
+        this.position = position;
+        channel = delegate instanceof FileOutputStream ? ((FileOutputStream) delegate).getChannel() : null;
         if (delegate instanceof BufferedOutputStream) {
             this.delegate = delegate;
         } else {
@@ -19,6 +35,7 @@ class ChecksumOutputStream extends OutputStream {
 
     void writeSum() throws IOException {
         delegate.write(sum);
+        position++;
         sum = 0;
     }
 
@@ -26,6 +43,7 @@ class ChecksumOutputStream extends OutputStream {
     public void write(int b) throws IOException {
         sum += b;
         delegate.write(b);
+        position++;
     }
 
     @Override
@@ -33,6 +51,11 @@ class ChecksumOutputStream extends OutputStream {
         for (int i = 0; i < len; i++)
             sum += b[i + off];
         delegate.write(b, off, len);
+        position += len;
+    }
+
+    long position() {
+        return position;
     }
 
     @Override
@@ -40,6 +63,15 @@ class ChecksumOutputStream extends OutputStream {
         delegate.flush();
     }
 
+    /**
+     * Flushes the buffer, and forces the written data to disk if the delegate is a file.
+     */
+    void force() throws IOException {
+        delegate.flush();
+        if (channel != null)
+            channel.force(false);
+    }
+
     @Override
     public void close() throws IOException {
         delegate.close();
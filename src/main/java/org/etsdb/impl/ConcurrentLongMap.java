@@ -0,0 +1,119 @@
+package org.etsdb.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map of primitive long keys for data that is read much more often than it is changed, such as the open shards of
+ * a series. Reads are lock free and do not box the key: they probe an open addressing table that is never modified
+ * once it is published. Writers copy the table under the map's monitor and publish the copy.
+ */
+class ConcurrentLongMap<V> {
+    private static final Table EMPTY = new Table(new long[2], new Object[2], 0);
+
+    private volatile Table table = EMPTY;
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        int index = hash(key) & mask;
+        while (true) {
+            Object value = t.values[index];
+            if (value == null)
+                return null;
+            if (t.keys[index] == key)
+                return (V) value;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the existing value for the key, in which case the given one was not added, or null.
+     */
+    synchronized V putIfAbsent(long key, V value) {
+        V existing = get(key);
+        if (existing != null)
+            return existing;
+
+        Table t = table;
+        Table copy = new Table(t.size + 1);
+        copy.copyFrom(t, Long.MIN_VALUE, false);
+        copy.insert(key, value);
+        table = copy;
+        return null;
+    }
+
+    synchronized V remove(long key) {
+        V existing = get(key);
+        if (existing == null)
+            return null;
+
+        Table t = table;
+        Table copy = new Table(t.size - 1);
+        copy.copyFrom(t, key, true);
+        table = copy;
+        return existing;
+    }
+
+    boolean isEmpty() {
+        return table.size == 0;
+    }
+
+    /**
+     * @return a snapshot of the values.
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        Table t = table;
+        List<V> values = new ArrayList<>(t.size);
+        for (Object value : t.values) {
+            if (value != null)
+                values.add((V) value);
+        }
+        return values;
+    }
+
+    private static int hash(long key) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Table {
+        final long[] keys;
+        final Object[] values;
+        int size;
+
+        Table(long[] keys, Object[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        /**
+         * Creates an empty table that can hold the given number of entries at no more than half full.
+         */
+        Table(int entries) {
+            int capacity = Integer.highestOneBit(Math.max(entries, 1)) << 2;
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        void copyFrom(Table from, long skipKey, boolean skip) {
+            for (int i = 0; i < from.values.length; i++) {
+                if (from.values[i] != null && !(skip && from.keys[i] == skipKey))
+                    insert(from.keys[i], from.values[i]);
+            }
+        }
+
+        void insert(long key, Object value) {
+            int mask = keys.length - 1;
+            int index = hash(key) & mask;
+            while (values[index] != null)
+                index = (index + 1) & mask;
+            keys[index] = key;
+            values[index] = value;
+            size++;
+        }
+    }
+}
@@ -91,7 +91,13 @@ class CorruptionScanner {
         final List<File> temps = getFiles(files, ".temp");
         final List<File> datas = getFiles(files, ".data");
         final List<File> metas = getFiles(files, ".meta");
-        if (temps.isEmpty() && datas.isEmpty() && metas.isEmpty()) {
+        final List<File> idxs = getFiles(files, ".idx");
+        final List<File> sums = getFiles(files, ".sum");
+        final List<File> ooos = getFiles(files, ".ooo");
+        final List<File> dels = getFiles(files, ".del");
+        final List<File> rollups = getFiles(files, ".rollup");
+        if (temps.isEmpty() && datas.isEmpty() && metas.isEmpty() && idxs.isEmpty() && sums.isEmpty()
+                && ooos.isEmpty() && dels.isEmpty() && rollups.isEmpty()) {
             return;
         }
         threads.incrementAndGet();
@@ -99,7 +105,7 @@ class CorruptionScanner {
             @Override
             public void run() {
                 try {
-                    checkSeriesDir(seriesDir, temps, datas, metas);
+                    checkSeriesDir(seriesDir, temps, datas, metas, idxs, sums, ooos, dels, rollups);
                 } catch (Exception x) {
                     logger.error(seriesDir.getPath(), x);
                 } finally {
@@ -115,63 +121,84 @@ class CorruptionScanner {
     private void checkSeriesDir(File seriesDir,
             List<File> temps,
             List<File> datas,
-            List<File> metas) throws IOException {
+            List<File> metas,
+            List<File> idxs,
+            List<File> sums,
+            List<File> ooos,
+            List<File> dels,
+            List<File> rollups) throws IOException {
         // temp files.
         if (!temps.isEmpty()) {
             for (File temp : temps) {
                 long shardId = Utils.getShardId(temp.getName(), 10);
                 File data = new File(seriesDir, shardId + ".data");
-                File meta = new File(seriesDir, shardId + ".meta");
 
                 if (data.exists()) {
                     // If the data file exists, then just delete the file
                     logger.warn("Found temp file " + temp + " with existing data file. Deleting.");
                     Utils.deleteWithRetry(temp);
-                } else if (meta.exists()) {
-                    // If the meta file exists, then rename the temp file to data, and delete the meta file so that it gets
-                    // recreated.
-                    logger.warn(
-                            "Found temp file " + temp +
-                                    " without data but with meta file. Moving.");
-                    Utils.renameWithRetry(temp, data);
-                    Utils.deleteWithRetry(meta);
                 } else {
-                    // Otherwise, just delete the temp file.
-                    logger.warn("Found temp file " + temp +
-                            " without data, meta file, or content. Deleting.");
-                    Utils.deleteWithRetry(temp);
+                    // The temp file is complete before the data file is deleted, so the rewrite was interrupted
+                    // before the temp file was renamed. Finish it.
+                    logger.warn("Found temp file " + temp + " without data file. Moving.");
+                    Utils.renameWithRetry(temp, data);
+                    Utils.deleteWithRetry(new File(seriesDir, shardId + ".idx"));
+                    Utils.deleteWithRetry(new File(seriesDir, shardId + ".sum"));
+                    ShardRollups.deleteFiles(data);
                 }
             }
         }
 
-        if (!datas.isEmpty()) {
-            for (File data : datas) {
-                long shardId = Utils.getShardId(data.getName());
-                boolean found = false;
-                for (int i = metas.size() - 1; i >= 0; i--) {
-                    File meta = metas.get(i);
-                    if (Utils.getShardId(meta.getName()) == shardId) {
-                        metas.remove(i);
-                        found = true;
-                        break;
-                    }
-                }
+        // Index files without data files should just be deleted.
+        for (File idx : idxs) {
+            long shardId = Utils.getShardId(idx.getName(), 4);
+            if (!new File(seriesDir, shardId + ".data").exists()) {
+                logger.warn("Index file without data file at " + idx + ". Deleting file");
+                Utils.deleteWithRetry(idx);
+            }
+        }
 
-                if (!found) {
-                    logger.warn("Data file without meta file in series " + seriesDir.getName() +
-                            ", shard " + shardId + ".");
-                }
+        // As should summary files without data files.
+        for (File sum : sums) {
+            long shardId = Utils.getShardId(sum.getName(), 4);
+            if (!new File(seriesDir, shardId + ".data").exists()) {
+                logger.warn("Summary file without data file at " + sum + ". Deleting file");
+                Utils.deleteWithRetry(sum);
+            }
+        }
+
+        // And out of order segments without data files.
+        for (File ooo : ooos) {
+            long shardId = Utils.getShardId(ooo.getName(), 4);
+            if (!new File(seriesDir, shardId + ".data").exists()) {
+                logger.warn("Out of order segment without data file at " + ooo + ". Deleting file");
+                Utils.deleteWithRetry(ooo);
+            }
+        }
+
+        // And tombstone files without data files.
+        for (File del : dels) {
+            long shardId = Utils.getShardId(del.getName(), 4);
+            if (!new File(seriesDir, shardId + ".data").exists()) {
+                logger.warn("Tombstone file without data file at " + del + ". Deleting file");
+                Utils.deleteWithRetry(del);
             }
         }
 
-        // If there are any files left in the meta list, then they should just be deleted.
-        if (!metas.isEmpty()) {
-            for (File meta : metas) {
-                logger.warn("Meta file without data file at " + meta + ". Deleting file");
-                Utils.deleteWithRetry(meta);
+        // And rollup files without data files.
+        for (File rollup : rollups) {
+            long shardId = ShardRollups.getShardId(rollup.getName());
+            if (!new File(seriesDir, shardId + ".data").exists()) {
+                logger.warn("Rollup file without data file at " + rollup + ". Deleting file");
+                Utils.deleteWithRetry(rollup);
             }
         }
 
+        // Meta files are no longer used. The latest time of a shard is taken from its summary.
+        for (File meta : metas) {
+            Utils.deleteWithRetry(meta);
+        }
+
         if (!datas.isEmpty()) {
             for (File data : datas) {
                 checkFile(data);
@@ -196,24 +223,32 @@ class CorruptionScanner {
     }
 
     private void checkFile(File data) throws IOException {
-        long position = 0;
-        // Start a detect/fix loop.
-        while (true) {
-            position = findCorruption(data, position);
-            if (position == -1) {
-                break;
-            }
-
-            // If any corruption was found, delete the meta file so that it gets recreated.
-            Utils.deleteWithRetry(
-                    new File(data.getParent(), Utils.getShardId(data.getName()) + ".meta"));
+        // The index is built while the file is checked.
+        ShardIndex index = new ShardIndex();
+        long position = findCorruption(data, 0, index);
+        boolean corrupt = position != -1;
 
+        // Start a detect/fix loop.
+        while (position != -1) {
             logger.warn("Corruption detected in " + data + " at position " + position);
             fixCorruption(data, position);
+            position = findCorruption(data, position, null);
         }
+
+        // Cutting corrupt data moves the records that follow it, so the index needs to be built again. The summary and
+        // rollups are deleted so that they get rebuilt when the shard is opened.
+        if (corrupt) {
+            index = ShardIndex.rebuild(data);
+            Utils.deleteWithRetry(ShardSummary.getSummaryFile(data));
+            ShardRollups.deleteFiles(data);
+        }
+        index.save(data);
     }
 
-    private long findCorruption(File data, long startPosition) throws IOException {
+    /**
+     * @param index if not null, the records that are read are added to this index.
+     */
+    private long findCorruption(File data, long startPosition, ShardIndex index) throws IOException {
         ChecksumInputStream in = null;
         try {
             ScanInfo scanInfo = new ScanInfo();
@@ -231,6 +266,9 @@ class CorruptionScanner {
                 if (scanInfo.isEof()) {
                     break;
                 }
+                if (index != null) {
+                    index.add(scanInfo.getOffset(), position);
+                }
             }
         } finally {
             Utils.closeQuietly(in);
@@ -305,6 +343,13 @@ class CorruptionScanner {
             return true;
         }
 
+        if (scanInfo.isBlockSample()) {
+            // The block's checksum has already been verified. Skip the rest of its samples so that the next check
+            // reads the next record.
+            scanInfo.skipBlock();
+            return true;
+        }
+
         // ??? Check that the record's ts is greater than 0, greater than the last, and less than the shard max.
         // Verify the checksum.
         return in.checkSum();
@@ -1,20 +1,18 @@
 package org.etsdb.impl;
 
 import org.etsdb.ByteArrayBuilder;
+import org.etsdb.Durability;
+import org.etsdb.NumericSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class DataShard {
@@ -25,18 +23,54 @@ class DataShard {
     private final String seriesId;
     private final long shardId;
     private final File dataFile;
-    private final File metaFile;
 
     private final PendingWriteList cache;
+    /**
+     * The first write-ahead log segment that holds a write in the cache. Maintained by the WriteAheadLog.
+     */
+    volatile long walSequence;
+    /**
+     * The serializer to use to write numeric blocks, or null if numeric block encoding is not enabled.
+     */
+    private final NumericSerializer<?> blockSerializer;
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final AtomicInteger metaClosures = new AtomicInteger();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     /**
      * This field is the latest time in the data file *only*. There may be cache records with a later ts that this value does not represent.
+     * It is taken from the summary when the shard is first written.
      */
     private long latestTime = -Long.MAX_VALUE;
-    private MappedByteBuffer metaBuf;
     private ChecksumOutputStream dataOut;
+    /**
+     * The pool's handle of the data output stream while it is open.
+     */
+    private FileHandlePool.Appender appender;
+    /**
+     * The sparse index of the data file. Loaded when first needed.
+     */
+    private ShardIndex index;
+    /**
+     * The summary of the data file. Loaded when first needed.
+     */
+    private ShardSummary summary;
+    /**
+     * The rollups of the data file, or null if rollups are not enabled. Loaded along with the summary, which feeds
+     * them.
+     */
+    private ShardRollups rollups;
+    /**
+     * The backdated samples that have not been written into the data file yet. Loaded when first needed.
+     */
+    private OutOfOrderSegment segment;
+    /**
+     * The deleted ranges that have not been removed from the data file yet. Loaded when first needed.
+     */
+    private ShardTombstones tombstones;
+    /**
+     * The number of samples written as individual records since the shard was opened, that could be compacted into
+     * numeric blocks.
+     */
+    private int rawWrites;
     private long lastAccess;
     private boolean closed;
 
@@ -44,12 +78,8 @@ class DataShard {
         this.db = db;
         this.seriesId = seriesId;
         this.shardId = shardId;
-        metaFile = new File(seriesDir, shardId + ".meta");
         dataFile = new File(seriesDir, shardId + ".data");
-
-        if (dataFile.exists() && !metaFile.exists()) {
-            recreateMetaFile();
-        }
+        blockSerializer = db.numericBlockEncoding ? db.numericSerializer : null;
 
         cache = db.useQueue() ? new PendingWriteList(db.queueInfo) : null;
 
@@ -65,6 +95,11 @@ class DataShard {
         out.writeSum();
     }
 
+    /**
+     * Reads the next sample into the scan info. If the sample was read from a record, the caller must verify the
+     * record's checksum. The checksum of a numeric block is verified here, and the samples in the block are returned
+     * by subsequent calls without reading from the input.
+     */
     static void _readSample(ChecksumInput in, ScanInfo scanInfo) throws IOException {
         if (scanInfo.isEof()) {
             // If we're done with the file, start iterating through the cache.
@@ -72,6 +107,10 @@ class DataShard {
             return;
         }
 
+        if (scanInfo.nextBlockSample()) {
+            return;
+        }
+
         int b = in.read();
         if (b == -1) {
             // EOF
@@ -83,12 +122,11 @@ class DataShard {
         if (((byte) b) != Utils.SAMPLE_HEADER[0]) {
             throw new BadRowException("Header error at 0: expected " + Utils.SAMPLE_HEADER[0] + ", got " + b);
         }
-        for (int i = 1; i < Utils.SAMPLE_HEADER.length; i++) {
-            b = in.read();
-            if (((byte) b) != Utils.SAMPLE_HEADER[i]) {
-                throw new BadRowException("Header error at " + i + ": expected " + Utils.SAMPLE_HEADER[i] + ", got "
-                        + b);
-            }
+        b = in.read();
+        boolean block = ((byte) b) == Utils.BLOCK_HEADER[1];
+        if (!block && ((byte) b) != Utils.SAMPLE_HEADER[1]) {
+            throw new BadRowException("Header error at 1: expected " + Utils.SAMPLE_HEADER[1] + " or "
+                    + Utils.BLOCK_HEADER[1] + ", got " + b);
         }
 
         // Offset
@@ -117,12 +155,23 @@ class DataShard {
         if (in.isEof()) {
             throw new BadRowException("EOF before row was completely read");
         }
+
+        if (block) {
+            if (!in.checkSum()) {
+                throw new BadRowException("Block checksum error");
+            }
+            scanInfo.readBlock(scanInfo.getOffset());
+        }
     }
 
     long getShardId() {
         return shardId;
     }
 
+    String getSeriesId() {
+        return seriesId;
+    }
+
     void lockRead() {
         lock.readLock().lock();
     }
@@ -143,15 +192,8 @@ class DataShard {
         return closed;
     }
 
-    List<PendingWrite> getCache() {
-        if (cache == null) {
-            return null;
-        }
-        return cache.getList();
-    }
-
-    int resetMetaClosures() {
-        return metaClosures.getAndSet(0);
+    PendingWriteList getCache() {
+        return cache;
     }
 
     void write(long ts, byte[] data, int off, int len) throws IOException {
@@ -161,57 +203,149 @@ class DataShard {
 
         try {
             ensureLatestTime();
+            if (writeSample(ts, data, off, len)) {
+                commitWrites(1);
+            }
+        } finally {
+            updateLastAccess();
+        }
+    }
 
-            long offset = Utils.getSampleOffset(ts);
-            if (ts >= latestTime) {
-                // Append
-                if (cache == null) {
-                    writeImmediate(ts, offset, data, off, len);
-                    db.flushCount.incrementAndGet();
-                    dataOut.flush();
-                } else {
-                    // First check if there are too many queued rows.
-                    if (db.queueInfo.queueSize.incrementAndGet() > db.queueInfo.discardQueueSize) {
-                        db.queueInfo.recentDiscards.incrementAndGet();
-                        db.queueInfo.queueSize.decrementAndGet();
-                    } else {
-                        cache.add(new PendingWrite(offset, data, off, len));
-                    }
-                }
-            } else {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Backdate: seriesId=" + seriesId + ", ts=" + ts + ", latestTime=" + latestTime);
+    /**
+     * Writes a run of samples with a single commit of the data file. The data of sample i is in data from
+     * offsets[i] to offsets[i + 1].
+     */
+    void write(long[] ts, byte[] data, int[] offsets, int from, int to) throws IOException {
+        if (closed) {
+            throw new IOException("DataShard already closed");
+        }
+
+        try {
+            ensureLatestTime();
+            int written = 0;
+            for (int i = from; i < to; i++) {
+                if (writeSample(ts[i], data, offsets[i], offsets[i + 1] - offsets[i])) {
+                    written++;
                 }
-                db.addBackdate(new Backdate(seriesId, shardId, offset, data, off, len));
+            }
+            if (written > 0) {
+                commitWrites(written);
             }
         } finally {
             updateLastAccess();
         }
     }
 
+    /**
+     * @return true if the sample was written directly to the data file, and needs to be committed.
+     */
+    private boolean writeSample(long ts, byte[] data, int off, int len) throws IOException {
+        long offset = Utils.getSampleOffset(ts);
+        if (ts >= latestTime) {
+            // Append. Deletes only cover the existing data, so this can only be in a deleted range if it
+            // overwrites the last sample.
+            undelete(offset);
+            if (cache == null) {
+                writeImmediate(ts, offset, data, off, len);
+                db.flushCount.incrementAndGet();
+                return true;
+            }
+
+            // First check if there are too many queued rows. Writers are normally held back by the overflow policy
+            // before this, but concurrent writers can pass it together.
+            if (db.queueInfo.queueSize.incrementAndGet() > db.queueInfo.discardQueueSize) {
+                db.queueInfo.dropped(seriesId, 1);
+                db.queueInfo.queueSize.decrementAndGet();
+            } else {
+                if (db.wal != null) {
+                    db.wal.append(this, seriesId, ts, data, off, len);
+                }
+                cache.add(offset, data, off, len);
+                if (db.lastValues != null) {
+                    db.lastValues.written(seriesId, ts, data, off, len);
+                }
+            }
+        } else {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Backdate: seriesId=" + seriesId + ", ts=" + ts + ", latestTime=" + latestTime);
+            }
+            db.addBackdate(new Backdate(seriesId, shardId, offset, data, off, len));
+        }
+        return false;
+    }
+
+    /**
+     * Makes the given number of direct writes durable according to the database's durability policy.
+     */
+    private void commitWrites(int count) throws IOException {
+        if (db.groupCommit != null) {
+            db.groupCommit.written(this, count);
+        } else if (db.durability == Durability.WRITE) {
+            dataOut.flush();
+        }
+    }
+
+    /**
+     * Writes a sample from the write-ahead log of a previous run, unless it was already written to the data file.
+     *
+     * @return true if the sample was written.
+     */
+    boolean replay(long ts, byte[] data) throws IOException {
+        ensureLatestTime();
+        if (ts <= latestTime) {
+            return false;
+        }
+        write(ts, data, 0, data.length);
+        return true;
+    }
+
     private void writeImmediate(long ts, long offset, byte[] data, int off, int len) throws IOException {
         openData();
-        openMeta();
 
+        getIndex().add(offset, dataOut.position());
+        getSummary().add(offset, data, off, len);
         _writeSample(dataOut, offset, data, off, len);
+        if (blockSerializer != null) {
+            rawWrites++;
+        }
         latestTime = ts;
-        metaBuf.putLong(latestTime);
-        metaBuf.flip();
+        if (db.lastValues != null) {
+            db.lastValues.written(seriesId, ts, data, off, len);
+        }
+        if (rollups != null && rollups.isSaveDue()) {
+            saveRollups();
+        }
     }
 
     int query(long fromOffset, long toOffset, int limit, RawQueryCallback cb) throws IOException {
+        return query(fromOffset, toOffset, limit, getCache(), cb);
+    }
+
+    /**
+     * @param cache the pending writes to return after the samples in the file, or null to only query the file.
+     */
+    private int query(long fromOffset, long toOffset, int limit, PendingWriteList cache, RawQueryCallback cb)
+            throws IOException {
         if (closed) {
             throw new IOException("DataShard already closed");
         }
 
+        flushData();
         ChecksumInputStream in = null;
         int count = 0;
         try {
-            ScanInfo scanInfo = new ScanInfo(getCache());
-            in = new ChecksumInputStream(dataFile);
+            ScanInfo scanInfo = new ScanInfo(db.numericSerializer, cache);
+            long start = 0;
+            SegmentMerge merge = null;
+            if (dataFile.exists()) {
+                // Skip to the indexed record closest before the time range.
+                start = getIndex().getStartPosition(fromOffset);
+                merge = getSegmentMerge(fromOffset);
+            }
+            in = openInput(start);
 
             while (count < limit) {
-                readSample(in, scanInfo);
+                readSample(in, scanInfo, merge);
                 if (scanInfo.isEndOfShard()) {
                     break;
                 }
@@ -232,91 +366,247 @@ class DataShard {
         return count;
     }
 
+    /**
+     * Like query, but also returns the first sample at or after the end of the range, and if before is true, the last
+     * sample before the range, in the same scan. For the sample before, the scan starts at the index block that holds
+     * the offset before the range, and keeps the last sample that it reads before the range. Only if that block's
+     * samples before the range are all deleted is the rest of the shard read backwards.
+     *
+     * @return the number of samples returned, or -1 if the sample before the range was wanted but the shard has none,
+     * in which case no samples were returned.
+     */
+    int queryWithBounds(long fromOffset, long toOffset, boolean before, RawQueryCallback cb) throws IOException {
+        if (closed) {
+            throw new IOException("DataShard already closed");
+        }
+        if (before && fromOffset == 0) {
+            return -1;
+        }
+
+        flushData();
+        ChecksumInputStream in = null;
+        int count = 0;
+        try {
+            ScanInfo scanInfo = new ScanInfo(db.numericSerializer, cache);
+            long start = 0;
+            int block = -1;
+            SegmentMerge merge = null;
+            if (dataFile.exists()) {
+                ShardIndex index = getIndex();
+                if (before) {
+                    block = index.floor(fromOffset - 1);
+                    start = block == -1 ? 0 : index.getPosition(block);
+                    merge = getSegmentMerge(block == -1 ? Long.MIN_VALUE : index.getOffset(block));
+                } else {
+                    start = index.getStartPosition(fromOffset);
+                    merge = getSegmentMerge(fromOffset);
+                }
+            }
+            in = openInput(start);
+
+            ByteArrayBuilder previous = before ? new ByteArrayBuilder() : null;
+            long previousOffset = -1;
+            while (true) {
+                readSample(in, scanInfo, merge);
+                if (scanInfo.isEndOfShard()) {
+                    break;
+                }
+                long offset = scanInfo.getOffset();
+                if (offset < fromOffset) {
+                    if (before) {
+                        ByteArrayBuilder b = scanInfo.getData();
+                        previous.clear();
+                        previous.put(b.getBuffer(), b.getReadOffset(), b.getAvailable());
+                        previousOffset = offset;
+                    }
+                    continue;
+                }
+
+                if (before) {
+                    int found = queryBefore(fromOffset, block, previous, previousOffset, cb);
+                    if (found == 0) {
+                        return -1;
+                    }
+                    count += found;
+                    before = false;
+                }
+                cb.sample(seriesId, Utils.getTimestamp(shardId, offset), scanInfo.getData());
+                count++;
+                if (offset >= toOffset) {
+                    // The sample after the range. Done.
+                    break;
+                }
+            }
+
+            if (before) {
+                // All of the samples are before the range.
+                int found = queryBefore(fromOffset, block, previous, previousOffset, cb);
+                if (found == 0) {
+                    return -1;
+                }
+                count += found;
+            }
+        } finally {
+            Utils.closeQuietly(in);
+            updateLastAccess();
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the sample before the range that the scan of queryWithBounds kept, or if it did not keep one but started
+     * after the beginning of the file, the sample that a reverse query finds.
+     *
+     * @return the number of samples returned.
+     */
+    private int queryBefore(long fromOffset, int block, ByteArrayBuilder previous, long previousOffset,
+            RawQueryCallback cb) throws IOException {
+        if (previousOffset != -1) {
+            cb.sample(seriesId, Utils.getTimestamp(shardId, previousOffset), previous);
+            return 1;
+        }
+        if (block != -1) {
+            return queryReverse(0, fromOffset, 1, cb);
+        }
+        return 0;
+    }
+
     int queryReverse(long fromOffset, long toOffset, int limit, RawQueryCallback cb) throws IOException {
         if (closed) {
             throw new IOException("DataShard already closed");
         }
 
+        flushData();
         int count = 0;
         try {
-            ScanInfo scanInfo = new ScanInfo();
+            ScanInfo scanInfo = new ScanInfo(db.numericSerializer);
+            boolean readFile = true;
 
             // Check the cache for eligible rows first.
             if (cache != null) {
-                PendingWrite p;
-                for (int i = cache.getList().size() - 1; i >= 0; i--) {
-                    p = cache.getList().get(i);
+                for (int i = cache.size() - 1; i >= 0 && count < limit; i--) {
+                    long offset = cache.getOffset(i);
 
-                    if (p.getOffset() >= toOffset)
+                    if (offset >= toOffset)
                         continue; // Ignore. After time range.
-                    else if (p.getOffset() < fromOffset) {
+                    else if (offset < fromOffset) {
                         // Before time range. Because cache rows are always after the file rows, we know that there
-                        // will be nothing of interest in the file. To prevent a file read, set the limit to 0.
-                        limit = 0;
+                        // will be nothing of interest in the file.
+                        readFile = false;
                         break;
                     }
                     // Found a cache row of interest. Use the scan info's builder in the callback.
                     scanInfo.getData().clear();
-                    scanInfo.getData().put(p.getData());
-                    cb.sample(seriesId, Utils.getTimestamp(shardId, p.getOffset()), scanInfo.getData());
+                    cache.get(i, scanInfo.getData());
+                    cb.sample(seriesId, Utils.getTimestamp(shardId, offset), scanInfo.getData());
                     count++;
                 }
             }
 
             // Check if we need to look at the file.
-            if (count < limit) {
-                // Yup. Read the file.
-                PositionQueue positions;
-                if (limit == Integer.MAX_VALUE) {
-                    positions = new PositionQueue(limit);
-                } else {
-                    positions = new PositionQueue(limit - count);
-                }
+            if (readFile && count < limit && dataFile.exists()) {
+                count += queryFileReverse(fromOffset, toOffset, limit - count, scanInfo, cb);
+            }
+        } finally {
+            updateLastAccess();
+        }
 
-                // Gather the positions of records in the time range in the shard.
-                ChecksumInputStream in = null;
-                try {
-                    in = new ChecksumInputStream(dataFile);
-                    while (true) {
-                        long position = in.position();
-                        readSample(in, scanInfo);
+        return count;
+    }
 
-                        if (scanInfo.isEof()) {
-                            break;
-                        }
+    /**
+     * Reads the file backwards one index block at a time, starting with the block that contains the end of the time
+     * range. The records of a block that are in the time range are buffered with a forward scan, and then returned in
+     * reverse, merged with the out-of-order samples that fall within the block.
+     */
+    private int queryFileReverse(long fromOffset, long toOffset, int limit, ScanInfo scanInfo, RawQueryCallback cb)
+            throws IOException {
+        ShardIndex index = getIndex();
+        if (index.size() == 0) {
+            return 0;
+        }
+        List<PendingWrite> ooo = getSegment().getSamples();
+        int oooIndex = ooo.size() - 1;
+        ShardTombstones tombstones = getTombstones();
+
+        int block = index.floor(toOffset);
+        if (block == -1) {
+            // The first record is already after the time range, but out-of-order samples may be before it.
+            block = 0;
+        }
+        int firstBlock = index.floor(fromOffset);
+        if (firstBlock == -1) {
+            firstBlock = 0;
+        }
 
-                        if (scanInfo.getOffset() < fromOffset)
-                            continue; // Ignore. Before time range
-                        else if (scanInfo.getOffset() >= toOffset) {
-                            break; // After time range. Done.
-                        }
-                        positions.push(position);
+        int count = 0;
+        SampleBuffer samples = new SampleBuffer();
+        for (; block >= firstBlock && count < limit; block--) {
+            long end = Long.MAX_VALUE;
+            if (block + 1 < index.size()) {
+                end = index.getPosition(block + 1);
+            }
+
+            // Gather the records in the time range in the block.
+            samples.clear();
+            scanInfo.reset();
+            ChecksumInputStream in = null;
+            try {
+                in = openInput(index.getPosition(block));
+                while (in.position() < end || scanInfo.hasMoreBlockSamples()) {
+                    readSample(in, scanInfo);
+
+                    if (scanInfo.isEof()) {
+                        break;
+                    }
+
+                    if (scanInfo.getOffset() < fromOffset)
+                        continue; // Ignore. Before time range
+                    else if (scanInfo.getOffset() >= toOffset) {
+                        break; // After time range. Done.
+                    } else if (tombstones.covers(scanInfo.getOffset())) {
+                        continue; // Deleted.
                     }
-                } finally {
-                    Utils.closeQuietly(in);
+                    samples.add(scanInfo.getOffset(), scanInfo.getData());
                 }
+            } finally {
+                Utils.closeQuietly(in);
+            }
 
-                // Use the found positions to retrieve the records in reverse.
-                if (positions.size() > 0) {
-                    RandomAccessFile raf = null;
-                    scanInfo.reset();
-                    try {
-                        raf = new RandomAccessFile(dataFile, "r");
-                        ChecksumDataInput craf = new ChecksumDataInput(raf);
-                        for (int i = positions.size() - 1; i >= 0; i--) {
-                            long position = positions.peek(i);
-                            raf.seek(position);
-                            readSample(craf, scanInfo);
-                            cb.sample(seriesId, Utils.getTimestamp(shardId, scanInfo.getOffset()), scanInfo.getData());
-                        }
-                        count += positions.size();
-                    } finally {
-                        Utils.closeQuietly(raf);
+            // Return the records in reverse. Out-of-order samples replace records with the same offset.
+            ByteArrayBuilder b = scanInfo.getData();
+            long blockStart = block == 0 ? Long.MIN_VALUE : index.getOffset(block);
+            int i = samples.size() - 1;
+            while (count < limit) {
+                while (oooIndex >= 0
+                        && (ooo.get(oooIndex).getOffset() >= toOffset || tombstones.covers(ooo.get(oooIndex).getOffset()))) {
+                    oooIndex--;
+                }
+                PendingWrite p = null;
+                if (oooIndex >= 0 && ooo.get(oooIndex).getOffset() >= Math.max(blockStart, fromOffset)) {
+                    p = ooo.get(oooIndex);
+                }
+
+                long offset;
+                if (p != null && (i < 0 || p.getOffset() >= samples.getOffset(i))) {
+                    if (i >= 0 && p.getOffset() == samples.getOffset(i)) {
+                        i--;
                     }
+                    oooIndex--;
+                    offset = p.getOffset();
+                    b.clear();
+                    b.put(p.getData());
+                } else if (i >= 0) {
+                    offset = samples.getOffset(i);
+                    samples.get(i, b);
+                    i--;
+                } else {
+                    break;
                 }
+                cb.sample(seriesId, Utils.getTimestamp(shardId, offset), b);
+                count++;
             }
-        } finally {
-            updateLastAccess();
         }
 
         return count;
@@ -327,26 +617,223 @@ class DataShard {
             if (cache == null || cache.isEmpty()) {
                 return Long.MIN_VALUE;
             }
-            return Utils.getTimestamp(shardId, cache.getList().get(0).getOffset());
+            return Utils.getTimestamp(shardId, cache.getOffset(0));
         }
 
-        ChecksumInputStream in = null;
         try {
             if (closed) {
                 throw new IOException("DataShard already closed");
             }
 
-            ScanInfo scanInfo = new ScanInfo();
-            in = new ChecksumInputStream(dataFile);
-
-            readSample(in, scanInfo);
+            ShardTombstones tombstones = getTombstones();
+            if (!tombstones.isEmpty()) {
+                // Find the first sample that is not deleted.
+                final AtomicLong minTs = new AtomicLong(Long.MAX_VALUE);
+                query(tombstones.skip(0), Long.MAX_VALUE, 1, new RawQueryCallback() {
+                    @Override
+                    public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+                        minTs.set(ts);
+                    }
+                });
+                return minTs.get();
+            }
 
-            if (scanInfo.isEndOfShard()) {
+            ShardSummary summary = getSummary();
+            OutOfOrderSegment segment = getSegment();
+            if (!segment.isEmpty()
+                    && (summary.getCount() == 0 || segment.getFirst().getOffset() < summary.getMinOffset())) {
+                return Utils.getTimestamp(shardId, segment.getFirst().getOffset());
+            }
+            if (summary.getCount() == 0) {
                 return Long.MAX_VALUE;
             }
-            return Utils.getTimestamp(shardId, scanInfo.getOffset());
+            return Utils.getTimestamp(shardId, summary.getMinOffset());
+        } finally {
+            updateLastAccess();
+        }
+    }
+
+    /**
+     * Counts the samples in the given range. The summary is used for the samples in the file if they are all in the
+     * range, so the file is only read if the range starts or ends within them, or if there are out-of-order samples or
+     * deleted ranges.
+     */
+    long count(long fromOffset, long toOffset) throws IOException {
+        if (closed) {
+            throw new IOException("DataShard already closed");
+        }
+
+        long count = 0;
+        try {
+            // The range of the file includes the out-of-order samples, which may be before the first in the file.
+            long[] range = getFileRange();
+            if (range != null && fromOffset <= range[1] && toOffset > range[0]) {
+                if (fromOffset > range[0] || toOffset <= range[1] || !getSegment().isEmpty()
+                        || !getTombstones().isEmpty()) {
+                    // Partial overlap, or samples to merge or skip. The query also counts the cache.
+                    return query(fromOffset, toOffset, Integer.MAX_VALUE, new RawQueryCallback() {
+                        @Override
+                        public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+                            // no op
+                        }
+                    });
+                }
+                count = getSummary().getCount();
+            }
+
+            if (cache != null) {
+                for (int i = 0; i < cache.size(); i++) {
+                    if (cache.getOffset(i) >= fromOffset && cache.getOffset(i) < toOffset) {
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            updateLastAccess();
+        }
+
+        return count;
+    }
+
+    /**
+     * Adds the samples in the given time range to the aggregator. The records of the coarsest rollup tier whose
+     * interval divides the given one are used for the tier's intervals that the range covers completely, and the rest
+     * of the range is read from the file. This includes the intervals that have out-of-order samples or deleted ranges,
+     * which the rollups do not reflect until the file is rewritten, and the current interval if it has queued writes.
+     * The time range is that of the whole query, so that the records of intervals that span two shards can be used.
+     */
+    void aggregate(long fromTs, long toTs, long interval, Aggregator aggregator) throws IOException {
+        if (closed) {
+            throw new IOException("DataShard already closed");
+        }
+
+        long fromOffset = Utils.getOffsetInShard(shardId, fromTs);
+        long toOffset = Utils.getOffsetInShard(shardId, toTs);
+        ShardRollups rollups = getRollups();
+        int tier = rollups == null ? -1 : rollups.getTier(interval);
+        if (tier == -1) {
+            query(fromOffset, toOffset, Integer.MAX_VALUE, aggregator);
+            return;
+        }
+
+        long tierInterval = rollups.getInterval(tier);
+        long start = Math.floorDiv(fromTs, tierInterval) * tierInterval;
+        if (start < fromTs) {
+            start += tierInterval;
+        }
+        long end = Math.floorDiv(toTs, tierInterval) * tierInterval;
+        boolean includeCurrent = cache == null || cache.isEmpty()
+                || Utils.getTimestamp(shardId, cache.getOffset(0)) >= rollups.getCurrentEnd(tier);
+        List<ShardRollups.Bucket> buckets = start < end ? rollups.read(tier, start, end, includeCurrent)
+                : Collections.<ShardRollups.Bucket>emptyList();
+
+        List<PendingWrite> ooo = getSegment().getSamples();
+        int oooIndex = 0;
+        ShardTombstones tombstones = getTombstones();
+        long rawFrom = fromOffset;
+        for (ShardRollups.Bucket bucket : buckets) {
+            long bucketFrom = Utils.getOffsetInShard(shardId, bucket.start);
+            long bucketTo = Utils.getOffsetInShard(shardId, bucket.start + tierInterval);
+            while (oooIndex < ooo.size() && ooo.get(oooIndex).getOffset() < bucketFrom) {
+                oooIndex++;
+            }
+            if ((oooIndex < ooo.size() && ooo.get(oooIndex).getOffset() < bucketTo)
+                    || tombstones.overlaps(bucketFrom, bucketTo - 1)) {
+                // Read along with the samples around it.
+                continue;
+            }
+
+            if (rawFrom < bucketFrom) {
+                query(rawFrom, bucketFrom, Integer.MAX_VALUE, aggregator);
+            }
+            aggregator.addBucket(seriesId, bucket);
+            rawFrom = bucketTo;
+        }
+        if (rawFrom < toOffset) {
+            query(rawFrom, toOffset, Integer.MAX_VALUE, aggregator);
+        }
+    }
+
+    /**
+     * Returns the first sample in the shard to the callback, if there is one.
+     *
+     * @return true if a sample was found.
+     */
+    boolean queryFirst(RawQueryCallback cb) throws IOException {
+        if (closed) {
+            throw new IOException("DataShard already closed");
+        }
+
+        try {
+            ShardTombstones tombstones = getTombstones();
+            if (!tombstones.isEmpty()) {
+                return query(tombstones.skip(0), Long.MAX_VALUE, 1, cb) > 0;
+            }
+
+            ByteArrayBuilder b = new ByteArrayBuilder();
+            ShardSummary summary = getSummary();
+            OutOfOrderSegment segment = getSegment();
+            if (!segment.isEmpty()
+                    && (summary.getCount() == 0 || segment.getFirst().getOffset() <= summary.getMinOffset())) {
+                PendingWrite p = segment.getFirst();
+                b.put(p.getData());
+                cb.sample(seriesId, Utils.getTimestamp(shardId, p.getOffset()), b);
+                return true;
+            }
+            if (summary.getCount() > 0) {
+                summary.getFirst(b);
+                cb.sample(seriesId, Utils.getTimestamp(shardId, summary.getMinOffset()), b);
+                return true;
+            }
+            if (cache != null && !cache.isEmpty()) {
+                cache.get(0, b);
+                cb.sample(seriesId, Utils.getTimestamp(shardId, cache.getOffset(0)), b);
+                return true;
+            }
+            return false;
+        } finally {
+            updateLastAccess();
+        }
+    }
+
+    /**
+     * Returns the last sample in the shard to the callback, if there is one.
+     *
+     * @return true if a sample was found.
+     */
+    boolean queryLast(RawQueryCallback cb) throws IOException {
+        if (closed) {
+            throw new IOException("DataShard already closed");
+        }
+
+        try {
+            if (!getTombstones().isEmpty()) {
+                return queryReverse(0, Long.MAX_VALUE, 1, cb) > 0;
+            }
+
+            ByteArrayBuilder b = new ByteArrayBuilder();
+            if (cache != null && !cache.isEmpty()) {
+                int last = cache.size() - 1;
+                cache.get(last, b);
+                cb.sample(seriesId, Utils.getTimestamp(shardId, cache.getOffset(last)), b);
+                return true;
+            }
+            ShardSummary summary = getSummary();
+            OutOfOrderSegment segment = getSegment();
+            if (!segment.isEmpty()
+                    && (summary.getCount() == 0 || segment.getLast().getOffset() >= summary.getMaxOffset())) {
+                PendingWrite p = segment.getLast();
+                b.put(p.getData());
+                cb.sample(seriesId, Utils.getTimestamp(shardId, p.getOffset()), b);
+                return true;
+            }
+            if (summary.getCount() > 0) {
+                summary.getLast(b);
+                cb.sample(seriesId, Utils.getTimestamp(shardId, summary.getMaxOffset()), b);
+                return true;
+            }
+            return false;
         } finally {
-            Utils.closeQuietly(in);
             updateLastAccess();
         }
     }
@@ -356,47 +843,152 @@ class DataShard {
             ensureLatestTime();
             return latestTime;
         }
-        PendingWrite p = cache.getList().get(cache.getList().size() - 1);
-        return Utils.getTimestamp(shardId, p.getOffset());
+        return Utils.getTimestamp(shardId, cache.getOffset(cache.size() - 1));
     }
 
     private void readSample(ChecksumInput in, ScanInfo scanInfo) throws IOException {
         _readSample(in, scanInfo);
-        if (!scanInfo.isEof() && !in.checkSum()) {
+        if (!scanInfo.isEof() && !scanInfo.isBlockSample() && !in.checkSum()) {
             throw new IOException("Corruption detected in " + dataFile.getPath());
         }
     }
 
-    long deleteSamples(long fromTs, long toTs) throws IOException {
-        if (!dataFile.exists()) {
+    /**
+     * Reads the next sample from the data file that has not been deleted, merged with the out-of-order samples if the
+     * merge is not null. Samples from the cache are not checked against the deleted ranges.
+     */
+    private void readSample(ChecksumInput in, ScanInfo scanInfo, SegmentMerge merge) throws IOException {
+        ShardTombstones tombstones = getTombstones();
+        while (true) {
+            if (merge == null || !merge.next(scanInfo)) {
+                readSample(in, scanInfo);
+                if (merge != null) {
+                    merge.merge(scanInfo);
+                }
+            }
+            if (scanInfo.isEof() || !tombstones.covers(scanInfo.getOffset())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deletes the samples in the given range, inclusive. Samples in the cache are removed, and the range is recorded
+     * as a tombstone for the samples in the file, which are removed by the next rewrite. The flush process rewrites
+     * shards with tombstones, so many deletes in a shard cost one rewrite.
+     *
+     * @return the number of samples that were deleted.
+     */
+    long deleteSamples(long fromOffset, long toOffset) throws IOException {
+        long count = count(fromOffset, toOffset + 1);
+        if (count == 0) {
             return 0;
         }
 
+        if (cache != null) {
+            int removed = cache.remove(fromOffset, toOffset);
+            db.queueInfo.queueSize.addAndGet(-removed);
+            if (cache.isEmpty() && db.wal != null) {
+                db.wal.flushed(this);
+            }
+        }
+
+        // Only the existing data is covered, so that later appends are not in a deleted range.
+        long[] range = getFileRange();
+        if (range != null) {
+            ShardTombstones tombstones = getTombstones();
+            tombstones.add(Math.max(fromOffset, range[0]), Math.min(toOffset, range[1]));
+            tombstones.save();
+        }
+        return count;
+    }
+
+    /**
+     * @return true if all of the samples in the data file have been deleted, and there are no pending writes, in which
+     * case the shard's files can be dropped instead of rewritten.
+     */
+    boolean isDeleted() {
+        if (!dataFile.exists() || (cache != null && !cache.isEmpty())) {
+            return false;
+        }
+        long[] range = getFileRange();
+        return range == null || getTombstones().covers(range[0], range[1]);
+    }
+
+    /**
+     * @return the first and last offsets of the samples in the data file and the out-of-order segment, or null if
+     * there are none. Deleted ranges are not taken into account.
+     */
+    private long[] getFileRange() {
+        ShardSummary summary = getSummary();
+        OutOfOrderSegment segment = getSegment();
+        if (summary.getCount() == 0 && segment.isEmpty()) {
+            return null;
+        }
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        if (summary.getCount() > 0) {
+            min = summary.getMinOffset();
+            max = summary.getMaxOffset();
+        }
+        if (!segment.isEmpty()) {
+            min = Math.min(min, segment.getFirst().getOffset());
+            max = Math.max(max, segment.getLast().getOffset());
+        }
+        return new long[]{min, max};
+    }
+
+    /**
+     * Makes sure that samples that are written at the given offsets are not hidden by earlier deletes.
+     */
+    private void undelete(long... offsets) throws IOException {
+        ShardTombstones tombstones = getTombstones();
+        if (tombstones.isEmpty()) {
+            return;
+        }
+
+        boolean changed = false;
+        for (long offset : offsets) {
+            changed |= tombstones.remove(offset);
+        }
+        if (changed) {
+            tombstones.save();
+        }
+    }
+
+    /**
+     * Rewrites the data file, merging in the out-of-order samples, leaving out the deleted samples, and storing
+     * samples in numeric blocks if enabled.
+     */
+    private void rewrite() throws IOException {
         // Close the data output stream
         closeData();
+        db.files.retire(dataFile);
+        deleteIndexFiles();
 
         // Rewrite the file.
         File tempFile = getTempFile();
         ChecksumOutputStream tempOut = new ChecksumOutputStream(new FileOutputStream(tempFile, false));
+        ShardIndex tempIndex = new ShardIndex();
+        ShardSummary tempSummary = new ShardSummary(db.numericSerializer);
+        ShardRollups tempRollups = createRollups(tempSummary);
+        SampleWriter writer = new SampleWriter(tempOut, tempIndex, tempSummary, blockSerializer);
 
         ChecksumInputStream in = null;
-        ScanInfo scanInfo = new ScanInfo();
-        long deleteCount = 0;
+        ScanInfo scanInfo = new ScanInfo(db.numericSerializer);
+        SegmentMerge merge = getSegmentMerge(Long.MIN_VALUE);
         try {
             in = new ChecksumInputStream(dataFile);
             ByteArrayBuilder b = scanInfo.getData();
 
-            readSample(in, scanInfo);
+            readSample(in, scanInfo, merge);
 
             while (!scanInfo.isEof()) {
-                long offset = scanInfo.getOffset();
-                if (offset < fromTs || offset > toTs) {
-                    _writeSample(tempOut, scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
-                } else {
-                    deleteCount++;
-                }
-                readSample(in, scanInfo);
+                writer.write(scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
+                readSample(in, scanInfo, merge);
             }
+            writer.flush();
         } finally {
             Utils.closeQuietly(in);
             Utils.closeQuietly(tempOut);
@@ -408,7 +1000,12 @@ class DataShard {
         } finally {
             Utils.renameWithRetry(tempFile, dataFile);
         }
-        return deleteCount;
+        index = tempIndex;
+        summary = tempSummary;
+        rollups = tempRollups;
+        saveIndexFiles();
+        getSegment().delete();
+        getTombstones().clear();
     }
 
     /**
@@ -426,15 +1023,36 @@ class DataShard {
             return;
         }
 
+        long[] offsets = new long[backdates.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = backdates.get(i).getOffset();
+        }
+        undelete(offsets);
+
+        // Backdates that are all within the data file can be appended to the out-of-order segment.
+        ShardSummary summary = getSummary();
+        if (db.outOfOrderSegmentSize > 0 && summary.getCount() > 0
+                && backdates.get(backdates.size() - 1).getOffset() <= summary.getMaxOffset()) {
+            getSegment().append(backdates);
+            return;
+        }
+
         // Close the data output stream
         closeData();
+        db.files.retire(dataFile);
+        deleteIndexFiles();
 
         // Rewrite the file.
         File tempFile = getTempFile();
         ChecksumOutputStream tempOut = new ChecksumOutputStream(new FileOutputStream(tempFile, false));
+        ShardIndex tempIndex = new ShardIndex();
+        ShardSummary tempSummary = new ShardSummary(db.numericSerializer);
+        ShardRollups tempRollups = createRollups(tempSummary);
+        SampleWriter writer = new SampleWriter(tempOut, tempIndex, tempSummary, blockSerializer);
 
         ChecksumInputStream in = null;
-        ScanInfo scanInfo = new ScanInfo();
+        ScanInfo scanInfo = new ScanInfo(db.numericSerializer);
+        SegmentMerge merge = getSegmentMerge(Long.MIN_VALUE);
         try {
             in = new ChecksumInputStream(dataFile);
             ByteArrayBuilder b = scanInfo.getData();
@@ -442,7 +1060,7 @@ class DataShard {
             Iterator<Backdate> iter = backdates.iterator();
             Backdate next = iter.next();
 
-            readSample(in, scanInfo);
+            readSample(in, scanInfo, merge);
 
             while (true) {
                 if (scanInfo.isEof() && next == null) // All done.
@@ -452,11 +1070,11 @@ class DataShard {
 
                 if (next == null || scanInfo.getOffset() < next.getOffset()) {
                     // No more inserts, or the read sample is before the next insert. Write the current sample.
-                    _writeSample(tempOut, scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
-                    readSample(in, scanInfo);
+                    writer.write(scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
+                    readSample(in, scanInfo, merge);
                 } else if (scanInfo.isEof() || scanInfo.getOffset() > next.getOffset()) {
                     // No more samples, or the next is before the current. Write the next.
-                    _writeSample(tempOut, next.getOffset(), next.getData(), 0, next.getData().length);
+                    writer.write(next.getOffset(), next.getData(), 0, next.getData().length);
                     if (iter.hasNext()) {
                         next = iter.next();
                     } else {
@@ -464,17 +1082,18 @@ class DataShard {
                     }
                 } else if (scanInfo.getOffset() == next.getOffset()) {
                     // The sample and the next have the same timestamp. Overwrite with the next.
-                    _writeSample(tempOut, next.getOffset(), next.getData(), 0, next.getData().length);
+                    writer.write(next.getOffset(), next.getData(), 0, next.getData().length);
                     if (iter.hasNext()) {
                         next = iter.next();
                     } else {
                         next = null;
                     }
-                    readSample(in, scanInfo);
+                    readSample(in, scanInfo, merge);
                 } else {
                     throw new RuntimeException("Unhandled condition");
                 }
             }
+            writer.flush();
         } finally {
             Utils.closeQuietly(in);
             Utils.closeQuietly(tempOut);
@@ -486,6 +1105,12 @@ class DataShard {
         } finally {
             Utils.renameWithRetry(tempFile, dataFile);
         }
+        index = tempIndex;
+        summary = tempSummary;
+        rollups = tempRollups;
+        saveIndexFiles();
+        getSegment().delete();
+        getTombstones().clear();
     }
 
     void close() {
@@ -497,6 +1122,12 @@ class DataShard {
             } catch (IOException e) {
                 logger.warn("Failed to write cache on close", e);
             }
+            if (cache != null) {
+                // If the writes could not be written they are lost, but their memory must still be released from the
+                // queue.
+                db.queueInfo.queueSize.addAndGet(-cache.size());
+                cache.close();
+            }
 
             closeFiles();
 
@@ -510,6 +1141,11 @@ class DataShard {
     }
 
     void flush(long runtime, boolean force) throws IOException {
+        if ((segment != null && segment.length() > db.outOfOrderSegmentSize)
+                || (tombstones != null && !tombstones.isEmpty())) {
+            compact();
+        }
+
         if (cache != null) {
             if ((force && !cache.isEmpty()) || cache.expired(runtime) || cache.exceeds()) {
                 if (force) {
@@ -524,64 +1160,153 @@ class DataShard {
         }
 
         if (lastAccess < runtime - db.shardStalePeriod && (cache == null || cache.isEmpty())) {
+            if (rawWrites > 1 || !getSegment().isEmpty()) {
+                compact();
+            }
             close();
         }
     }
 
+    /**
+     * Rewrites the data file so that the samples that were written individually are stored in numeric blocks, the
+     * out-of-order samples are merged in, and deleted samples are removed. This is done when the shard is closed
+     * because it is stale, so it usually happens once, after the shard's time period has passed, or sooner if the
+     * out-of-order segment grows too large or samples were deleted.
+     */
+    private void compact() {
+        try {
+            rewrite();
+        } catch (IOException e) {
+            logger.warn("Failed to compact " + dataFile, e);
+        }
+        rawWrites = 0;
+    }
+
+    /**
+     * @return the memory in bytes that is held by the shard's queued writes.
+     */
+    long getQueuedBytes() {
+        return cache == null ? 0 : cache.getBytes();
+    }
+
+    /**
+     * Writes the queued writes of the shard, to bring the queue back within its memory budget. Unlike the other
+     * methods, this locks the shard itself.
+     */
+    void flushQueue() throws IOException {
+        lockWrite();
+        try {
+            if (!closed && cache != null && !cache.isEmpty()) {
+                db.flushLimit.incrementAndGet();
+                writeCache();
+            }
+        } finally {
+            unlockWrite();
+        }
+    }
+
     private void writeCache() throws IOException {
         if (cache != null && !cache.isEmpty()) {
-            for (PendingWrite p : cache.getList()) {
-                writeImmediate(Utils.getTimestamp(shardId, p.getOffset()), p.getOffset(), p.getData(), 0,
-                        p.getData().length);
+            openData();
+
+            SampleWriter writer = new SampleWriter(dataOut, getIndex(), getSummary(), blockSerializer);
+            byte[] slab = cache.getSlab();
+            for (int i = 0; i < cache.size(); i++) {
+                writer.write(cache.getOffset(i), slab, cache.getPosition(i), cache.getLength(i));
             }
+            writer.flush();
+
+            latestTime = Utils.getTimestamp(shardId, cache.getOffset(cache.size() - 1));
             dataOut.flush();
-            db.queueInfo.queueSize.addAndGet(-cache.getList().size());
-            db.flushCount.addAndGet(cache.getList().size());
+            db.queueInfo.queueSize.addAndGet(-cache.size());
+            db.flushCount.addAndGet(cache.size());
             cache.clear();
+            if (db.wal != null) {
+                db.wal.flushed(this);
+            }
             closeFiles();
         }
     }
 
+    /**
+     * Flushes, and optionally forces to disk, the writes that have not yet been committed. Called by the group commit.
+     */
+    void commit(boolean force) throws IOException {
+        if (dataOut != null) {
+            if (force) {
+                dataOut.force();
+            } else {
+                dataOut.flush();
+            }
+        }
+    }
+
+    /**
+     * Makes sure that writes that are still buffered because of the durability policy are in the file before it is
+     * read.
+     */
+    private void flushData() throws IOException {
+        ChecksumOutputStream out = dataOut;
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * @return an input of the data file from the given position, which reads through the file handle pool.
+     */
+    private ChecksumInputStream openInput(long start) throws IOException {
+        if (!dataFile.exists()) {
+            return new ChecksumInputStream(dataFile, start);
+        }
+        return new ChecksumInputStream(new ChannelInputStream(db.files.getReader(dataFile), start), start);
+    }
+
     private void openData() throws IOException {
-        if (dataOut == null) {
+        if (dataOut != null) {
+            db.files.used(appender);
+        } else {
             if (!dataFile.getParentFile().exists()) {
                 if (!dataFile.getParentFile().mkdirs()) {
                     String path = dataFile.getParent();
                     logger.error("Failed to create dataFile: {}", path);
                 }
             }
-            dataOut = new ChecksumOutputStream(new FileOutputStream(dataFile, dataFile.exists()));
-            db.openFiles.incrementAndGet();
-        }
-    }
-
-    private void openMeta() throws IOException {
-        if (metaBuf == null) {
-            RandomAccessFile raf = new RandomAccessFile(metaFile, "rw");
-            metaBuf = raf.getChannel().map(MapMode.READ_WRITE, 0, 8);
-            Utils.closeQuietly(raf);
-            db.openFiles.incrementAndGet();
+            dataOut = new ChecksumOutputStream(new FileOutputStream(dataFile, dataFile.exists()), dataFile.length());
+            appender = db.files.opened(this);
         }
     }
 
     void closeFiles() {
         closeData();
-        closeMeta();
+        db.files.retire(dataFile);
+        saveIndexFiles();
     }
 
     private void closeData() {
         if (dataOut != null) {
             Utils.closeQuietly(dataOut);
             dataOut = null;
-            db.openFiles.decrementAndGet();
+            db.files.closed(appender);
+            appender = null;
         }
     }
 
-    private void closeMeta() {
-        if (metaBuf != null) {
-            // The file is actually closed when the buffer is GC'ed.
-            metaBuf = null;
-            metaClosures.incrementAndGet();
+    /**
+     * Closes the data output stream for the file handle pool, unless the shard is in use.
+     *
+     * @return true if the stream was closed.
+     */
+    boolean tryCloseOutput() {
+        if (lock.isWriteLockedByCurrentThread() || !lock.writeLock().tryLock()) {
+            return false;
+        }
+        try {
+            boolean open = dataOut != null;
+            closeData();
+            return open;
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -597,35 +1322,116 @@ class DataShard {
         return new File(dataFile.getParentFile(), dataFile.getName() + ".temp");
     }
 
-    private void recreateMetaFile() throws IOException {
-        final AtomicLong lastTs = new AtomicLong();
-        query(0, Long.MAX_VALUE, Integer.MAX_VALUE, new RawQueryCallback() {
-            @Override
-            public void sample(String seriesId, long ts, ByteArrayBuilder b) {
-                lastTs.set(ts);
+    private synchronized ShardIndex getIndex() {
+        if (index == null) {
+            index = ShardIndex.load(dataFile);
+        }
+        return index;
+    }
+
+    private synchronized ShardSummary getSummary() {
+        if (summary == null) {
+            summary = ShardSummary.load(dataFile, db.numericSerializer);
+            rollups = createRollups(summary);
+            if (rollups != null) {
+                rollups.load(db.numericSerializer, getIndex(), summary.getNumericCount());
             }
-        });
+        }
+        return summary;
+    }
 
-        ByteArrayBuilder b = new ByteArrayBuilder(8);
-        b.putLong(lastTs.get());
+    private synchronized ShardRollups getRollups() {
+        getSummary();
+        return rollups;
+    }
 
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(metaFile);
-            b.get(out, 8);
-        } finally {
-            Utils.closeQuietly(out);
+    /**
+     * @return empty rollups that are fed by the given summary, or null if rollups are not enabled.
+     */
+    private ShardRollups createRollups(ShardSummary summary) {
+        if (db.rollupIntervals.length == 0) {
+            return null;
+        }
+        ShardRollups rollups = new ShardRollups(dataFile, shardId, db.rollupIntervals);
+        summary.setRollups(rollups);
+        return rollups;
+    }
+
+    private synchronized OutOfOrderSegment getSegment() {
+        if (segment == null) {
+            segment = OutOfOrderSegment.load(dataFile);
+        }
+        return segment;
+    }
+
+    private synchronized ShardTombstones getTombstones() {
+        if (tombstones == null) {
+            tombstones = ShardTombstones.load(dataFile);
         }
+        return tombstones;
     }
 
-    private void ensureLatestTime() throws IOException {
-        // Get the latest time.
-        if (latestTime == -Long.MAX_VALUE && metaFile.exists()) {
+    /**
+     * @return a merge of the out-of-order samples from the given offset, or null if there are none.
+     */
+    private SegmentMerge getSegmentMerge(long fromOffset) {
+        OutOfOrderSegment segment = getSegment();
+        if (segment.isEmpty()) {
+            return null;
+        }
+        return new SegmentMerge(segment.getSamples(), fromOffset);
+    }
+
+    private void saveIndexFiles() {
+        if (dataFile.exists()) {
+            if (index != null) {
+                try {
+                    index.save(dataFile);
+                } catch (IOException e) {
+                    logger.warn("Failed to save index for " + dataFile, e);
+                }
+            }
+            if (summary != null) {
+                try {
+                    summary.save(dataFile);
+                } catch (IOException e) {
+                    logger.warn("Failed to save summary for " + dataFile, e);
+                }
+            }
+            saveRollups();
+        }
+    }
+
+    private void saveRollups() {
+        if (rollups != null) {
             try {
-                openMeta();
-                latestTime = metaBuf.getLong();
-            } finally {
-                closeMeta();
+                rollups.save();
+            } catch (IOException e) {
+                logger.warn("Failed to save rollups for " + dataFile, e);
+            }
+        }
+    }
+
+    /**
+     * Removes the index, summary and rollups before the data file is rewritten so that a failure during the rewrite
+     * cannot leave files that do not match the data.
+     */
+    private void deleteIndexFiles() throws IOException {
+        index = null;
+        summary = null;
+        rollups = null;
+        Utils.deleteWithRetry(ShardIndex.getIndexFile(dataFile));
+        Utils.deleteWithRetry(ShardSummary.getSummaryFile(dataFile));
+        ShardRollups.deleteFiles(dataFile);
+    }
+
+    private void ensureLatestTime() {
+        // Get the latest time. The summary covers the whole data file, including records written after it was last
+        // saved, so it is correct after a crash too.
+        if (latestTime == -Long.MAX_VALUE) {
+            ShardSummary summary = getSummary();
+            if (summary.getCount() > 0) {
+                latestTime = Utils.getTimestamp(shardId, summary.getMaxOffset());
             }
         }
     }
@@ -3,13 +3,25 @@ package org.etsdb.impl;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicInteger;
 import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicLong;
+import org.dsa.iot.shared.SharedObjects;
+import org.etsdb.Aggregate;
+import org.etsdb.AggregateCallback;
 import org.etsdb.ByteArrayBuilder;
+import org.etsdb.ConfigException;
+import org.etsdb.Cursor;
 import org.etsdb.Database;
 import org.etsdb.DbConfig;
+import org.etsdb.DoubleQueryCallback;
+import org.etsdb.Downsampling;
+import org.etsdb.Durability;
 import org.etsdb.EtsdbException;
+import org.etsdb.GapFill;
+import org.etsdb.NumericSerializer;
+import org.etsdb.PrimitiveSerializer;
 import org.etsdb.QueryCallback;
 import org.etsdb.Serializer;
 import org.etsdb.TimeRange;
+import org.etsdb.WriteBatch;
 import org.etsdb.util.EventHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,13 +29,17 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -36,15 +52,31 @@ public class DatabaseImpl<T> implements Database<T> {
     public static final int VERSION = 2;
     static final Logger logger = LoggerFactory.getLogger(DatabaseImpl.class.getName());
     final Serializer<T> serializer;
+    /**
+     * The serializer if it is a NumericSerializer, or null.
+     */
+    final NumericSerializer<T> numericSerializer;
+    /**
+     * The serializer if it is a PrimitiveSerializer, or null.
+     */
+    final PrimitiveSerializer<T> primitiveSerializer;
     int shardStalePeriod;
+    boolean numericBlockEncoding;
+    int outOfOrderSegmentSize;
+    long[] rollupIntervals;
+    LastValueCache lastValues;
+    // Durability of direct writes
+    Durability durability;
+    GroupCommit groupCommit;
     // Open shards
-    int maxOpenFiles;
     final NotifyAtomicInteger openShards = new NotifyAtomicInteger();
     final NotifyAtomicInteger openFiles = new NotifyAtomicInteger();
+    final FileHandlePool files;
     // Write queue
     WriteQueueInfo queueInfo;
+    WriteAheadLog wal;
+    private volatile PartitionedWriter<T> writer;
     final NotifyAtomicLong flushCount = new NotifyAtomicLong();
-    final AtomicLong forcedClose = new AtomicLong();
     final NotifyAtomicLong flushForced = new NotifyAtomicLong();
     final NotifyAtomicLong flushExpired = new NotifyAtomicLong();
     final NotifyAtomicLong flushLimit = new NotifyAtomicLong();
@@ -52,7 +84,7 @@ public class DatabaseImpl<T> implements Database<T> {
     private File baseDir;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private Janitor janitor;
-    private final Map<String, Series<T>> seriesLookup = new HashMap<>();
+    private final ConcurrentMap<String, Series<T>> seriesLookup = new ConcurrentHashMap<>();
     // Backdates
     private Backdates backdates;
     // Monitors
@@ -71,7 +103,13 @@ public class DatabaseImpl<T> implements Database<T> {
         config.validate();
         this.config = config;
         this.serializer = serializer;
+        numericSerializer = serializer instanceof NumericSerializer ? (NumericSerializer<T>) serializer : null;
+        primitiveSerializer = serializer instanceof PrimitiveSerializer ? (PrimitiveSerializer<T>) serializer : null;
+        if (config.isNumericBlockEncoding() && numericSerializer == null) {
+            throw new ConfigException("numericBlockEncoding requires a NumericSerializer");
+        }
         this.baseDir = baseDir;
+        files = new FileHandlePool(this, config.getMaxOpenFiles());
         open();
     }
 
@@ -114,6 +152,10 @@ public class DatabaseImpl<T> implements Database<T> {
         logger.info("Database started at {}", baseDir.getAbsolutePath());
 
         shardStalePeriod = config.getShardStalePeriod();
+        numericBlockEncoding = config.isNumericBlockEncoding();
+        outOfOrderSegmentSize = config.getOutOfOrderSegmentSize();
+        rollupIntervals = config.getRollupIntervals().clone();
+        lastValues = config.getLastValueCacheSize() > 0 ? new LastValueCache(config.getLastValueCacheSize()) : null;
         if (config.isIgnoreBackdates()) {
             backdates = null;
         } else {
@@ -122,6 +164,14 @@ public class DatabaseImpl<T> implements Database<T> {
 
         queueInfo = config.isUseWriteQueue() ? new WriteQueueInfo(config) : null;
 
+        durability = config.getDurability();
+        if (durability == Durability.GROUP_COMMIT) {
+            groupCommit = new GroupCommit(this, config.getGroupCommitInterval(), config.getGroupCommitSize(),
+                    config.getForceInterval());
+        } else if (durability == Durability.OS && config.getForceInterval() > 0) {
+            groupCommit = new GroupCommit(this, config.getForceInterval(), Integer.MAX_VALUE, 1);
+        }
+
         janitor = new Janitor(this);
         janitor.lock();
         janitor.setFileLockCheckInterval(config.getFileLockCheckInterval());
@@ -134,6 +184,16 @@ public class DatabaseImpl<T> implements Database<T> {
             logger.info("Empty dir delete took " + (System.currentTimeMillis() - start) + "ms");
         }
 
+        List<File> walSegments = WriteAheadLog.getSegments(baseDir);
+        if (useQueue() && config.isWriteAheadLog()) {
+            wal = new WriteAheadLog(this, config.getWalSegmentSize(), config.getWalSyncInterval());
+            try {
+                wal.initiate(walSegments);
+            } catch (IOException e) {
+                throw new EtsdbException(e);
+            }
+        }
+
         DBProperties props = getProperties();
         if (!props.getBoolean("clean", false)) {
             if (config.isRunCorruptionScan()) {
@@ -161,9 +221,35 @@ public class DatabaseImpl<T> implements Database<T> {
             });
         }
 
-        maxOpenFiles = config.getMaxOpenFiles();
+        if (!walSegments.isEmpty()) {
+            // Write the queued samples that were lost when the database was last closed. This is done after the
+            // corruption scan, so that the samples are not appended after a damaged record.
+            long start = System.currentTimeMillis();
+            try {
+                int count = WriteAheadLog.replay(this, walSegments);
+                flush(true);
+                for (File segment : walSegments) {
+                    Utils.deleteWithRetry(segment);
+                }
+                logger.info("Replayed " + count + " writes from the write-ahead log in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException e) {
+                throw new EtsdbException(e);
+            }
+        }
 
         janitor.initiate();
+        if (queueInfo != null) {
+            QueueBudget.register(this);
+        }
+        if (config.getIngestPartitions() > 0) {
+            writer = new PartitionedWriter<>(this, serializer, config.getIngestPartitions(),
+                    config.getIngestBufferSize());
+            writer.initiate();
+        }
+        if (groupCommit != null) {
+            groupCommit.initiate();
+        }
     }
 
     @Override
@@ -225,12 +311,29 @@ public class DatabaseImpl<T> implements Database<T> {
         }
     }
 
-    boolean tooManyFiles() {
-        return maxOpenFiles > 0 && openFiles.get() >= maxOpenFiles;
+    /**
+     * Waits for the partition threads, if they are used, to write the samples of the series that were written so far.
+     * This must not be called while holding the database lock, since the partition threads need it.
+     */
+    private void drain(String seriesId) {
+        PartitionedWriter<T> writer = this.writer;
+        if (writer != null) {
+            writer.drain(seriesId);
+        }
     }
 
     @Override
     public void write(String seriesId, long ts, T value) {
+        PartitionedWriter<T> writer = this.writer;
+        if (writer != null) {
+            writer.write(seriesId, ts, value);
+            return;
+        }
+
+        if (!admit(seriesId, 1)) {
+            return;
+        }
+
         lockConcurrent();
         try {
             writesPerSecond.hit();
@@ -248,6 +351,146 @@ public class DatabaseImpl<T> implements Database<T> {
         }
     }
 
+    @Override
+    public void writeDouble(String seriesId, long ts, double value) {
+        writePrimitive(seriesId, ts, PrimitiveValue.DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    @Override
+    public void writeLong(String seriesId, long ts, long value) {
+        writePrimitive(seriesId, ts, PrimitiveValue.LONG, value);
+    }
+
+    @Override
+    public void writeBoolean(String seriesId, long ts, boolean value) {
+        writePrimitive(seriesId, ts, PrimitiveValue.BOOLEAN, value ? 1 : 0);
+    }
+
+    private void writePrimitive(String seriesId, long ts, int type, long bits) {
+        if (primitiveSerializer == null) {
+            throw new IllegalStateException("The serializer " + serializer.getClass().getName()
+                    + " does not write primitive values, since it is not a PrimitiveSerializer");
+        }
+
+        PartitionedWriter<T> writer = this.writer;
+        if (writer != null) {
+            writer.writePrimitive(seriesId, ts, type, bits);
+            return;
+        }
+
+        if (!admit(seriesId, 1)) {
+            return;
+        }
+
+        lockConcurrent();
+        try {
+            writesPerSecond.hit();
+            writeCount.incrementAndGet();
+            try {
+                Series<T> series = getSeries(seriesId);
+                series.writePrimitive(ts, type, bits);
+            } catch (IOException e) {
+                throw new EtsdbException(e);
+            }
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    @Override
+    public void write(String seriesId, long[] ts, T[] values) {
+        if (ts.length != values.length) {
+            throw new IllegalArgumentException("The number of timestamps and values must be the same");
+        }
+        write(seriesId, ts, Arrays.asList(values), ts.length);
+    }
+
+    @Override
+    public void write(WriteBatch<T> batch) {
+        for (String seriesId : batch.getSeriesIds()) {
+            List<T> values = batch.getValues(seriesId);
+            write(seriesId, batch.getTimestamps(seriesId), values, values.size());
+        }
+    }
+
+    private void write(String seriesId, long[] ts, List<T> values, int count) {
+        PartitionedWriter<T> writer = this.writer;
+        if (writer != null) {
+            for (int i = 0; i < count; i++) {
+                writer.write(seriesId, ts[i], values.get(i));
+            }
+            return;
+        }
+
+        if (!admit(seriesId, count)) {
+            return;
+        }
+
+        lockConcurrent();
+        try {
+            writesPerSecond.hit(count);
+            writeCount.addAndGet(count);
+            try {
+                Series<T> series = getSeries(seriesId);
+                series.write(ts, values, count);
+            } catch (IOException e) {
+                throw new EtsdbException(e);
+            }
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    /**
+     * Writes a batch of samples from a partition thread. The samples must be grouped by series.
+     */
+    void write(PartitionedWriter.Sample[] samples, int count) {
+        if (!admit(null, count)) {
+            for (int i = 0; i < count; i++) {
+                queueInfo.dropped(samples[i].seriesId, 1);
+            }
+            return;
+        }
+
+        lockConcurrent();
+        try {
+            writesPerSecond.hit(count);
+            writeCount.addAndGet(count);
+
+            int from = 0;
+            while (from < count) {
+                String seriesId = samples[from].seriesId;
+                int to = from + 1;
+                while (to < count && samples[to].seriesId.equals(seriesId)) {
+                    to++;
+                }
+
+                try {
+                    getSeries(seriesId).write(samples, from, to);
+                } catch (IOException e) {
+                    logger.warn("Failed to write " + (to - from) + " samples to series " + seriesId, e);
+                }
+                from = to;
+            }
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    /**
+     * Writes a sample from the write-ahead log of a previous run.
+     *
+     * @return true if the sample was written, or false if it was already in the data file.
+     */
+    boolean replay(String seriesId, long ts, byte[] data) throws IOException {
+        lockConcurrent();
+        try {
+            return getSeries(seriesId).replay(ts, data);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
     @Override
     public void query(String seriesId, long fromTs, long toTs, final QueryCallback<T> cb) {
         query(seriesId, fromTs, toTs, Integer.MAX_VALUE, false, cb);
@@ -262,30 +505,166 @@ public class DatabaseImpl<T> implements Database<T> {
     @Override
     public void query(String seriesId, long fromTs, long toTs, int limit, boolean reverse,
             final QueryCallback<T> cb) {
+        queryRaw(seriesId, fromTs, toTs, limit, reverse, new CallbackWrapper(cb));
+    }
+
+    @Override
+    public void query(List<String> seriesIds, long fromTs, long toTs, int limit, QueryCallback<T> cb) {
+        query(seriesIds, fromTs, toTs, limit, false, cb);
+    }
+
+    @Override
+    public void query(List<String> seriesIds, long fromTs, long toTs, int limit, boolean parallel,
+            QueryCallback<T> cb) {
+        if (limit <= 0 || seriesIds.isEmpty()) {
+            return;
+        }
+        SeriesMerge<T> merge = new SeriesMerge<>(this, seriesIds, fromTs, toTs, limit,
+                parallel ? SharedObjects.getDaemonThreadPool() : null);
+        merge.query(limit, cb);
+    }
+
+    @Override
+    public void aggregate(String seriesId, long fromTs, long toTs, long interval, Aggregate[] aggregates,
+            GapFill gapFill, AggregateCallback cb) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The interval must be greater than 0");
+        }
+        Aggregator aggregator = new Aggregator(getNumericSerializer(), interval, aggregates, gapFill, cb);
         lockConcurrent();
         try {
             Series<T> series = getSeries(seriesId);
-            series.query(fromTs, toTs, limit, reverse, new CallbackWrapper(cb));
+            series.aggregate(fromTs, toTs, interval, aggregator);
         } catch (IOException e) {
             throw new EtsdbException(e);
         } finally {
             unlockConcurrent();
         }
+        aggregator.finish(seriesId);
     }
 
     @Override
-    public long count(String seriesId, long fromTs, long toTs) {
+    public void downsample(String seriesId, long fromTs, long toTs, int maxPoints, Downsampling method,
+            QueryCallback<T> cb) {
+        if (maxPoints < 4) {
+            throw new IllegalArgumentException("The maximum number of points must be at least 4");
+        }
+        NumericSerializer<T> numericSerializer = getNumericSerializer();
         lockConcurrent();
         try {
-            final AtomicLong count = new AtomicLong();
             Series<T> series = getSeries(seriesId);
-            series.query(fromTs, toTs, Integer.MAX_VALUE, false, new RawQueryCallback() {
+            TimeRange range = series.getTimeRange();
+            if (range == null) {
+                return;
+            }
+            long from = Math.max(fromTs, range.getFrom());
+            long to = range.getTo() < toTs ? range.getTo() + 1 : toTs;
+            if (from >= to) {
+                return;
+            }
+            Downsampler downsampler = Downsampler.create(numericSerializer, method, from, to, maxPoints,
+                    new CallbackWrapper(cb));
+            series.query(from, to, Integer.MAX_VALUE, false, downsampler);
+            downsampler.finish(seriesId);
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    @Override
+    public void queryWithBounds(String seriesId, long fromTs, long toTs, QueryCallback<T> cb) {
+        lockConcurrent();
+        try {
+            Series<T> series = getSeries(seriesId);
+            series.queryWithBounds(fromTs, toTs, new CallbackWrapper(cb));
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    void queryRaw(String seriesId, long fromTs, long toTs, int limit, boolean reverse, RawQueryCallback cb) {
+        lockConcurrent();
+        try {
+            Series<T> series = getSeries(seriesId);
+            series.query(fromTs, toTs, limit, reverse, cb);
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    @Override
+    public Cursor<T> openCursor(String seriesId, long fromTs, long toTs, boolean reverse) {
+        return new QueryCursor<>(this, seriesId, fromTs, toTs, reverse);
+    }
+
+    @Override
+    public Cursor<T> openCursor(String continuationToken) {
+        return QueryCursor.resume(this, continuationToken);
+    }
+
+    @Override
+    public void queryFirst(String seriesId, final QueryCallback<T> cb) {
+        queryFirst(seriesId, false, cb);
+    }
+
+    @Override
+    public void queryLast(String seriesId, final QueryCallback<T> cb) {
+        queryFirst(seriesId, true, cb);
+    }
+
+    @Override
+    public void queryViews(String seriesId, long fromTs, long toTs, int limit, boolean reverse,
+            final QueryCallback<T> cb) {
+        queryRaw(seriesId, fromTs, toTs, limit, reverse, new ViewCallbackWrapper(cb));
+    }
+
+    @Override
+    public void queryDoubles(String seriesId, long fromTs, long toTs, int limit, boolean reverse,
+            final DoubleQueryCallback cb) {
+        queryRaw(seriesId, fromTs, toTs, limit, reverse, new DoubleCallbackWrapper(getNumericSerializer(), cb));
+    }
+
+    private void queryFirst(String seriesId, boolean reverse, final QueryCallback<T> cb) {
+        final CallbackWrapper wrapper = new CallbackWrapper(cb);
+        RawQueryCallback rawCb = wrapper;
+        if (reverse && lastValues != null) {
+            if (lastValues.query(seriesId, wrapper)) {
+                return;
+            }
+            // Cache the last sample when it is read.
+            final long changes = lastValues.getChanges(seriesId);
+            rawCb = new RawQueryCallback() {
                 @Override
                 public void sample(String seriesId, long ts, ByteArrayBuilder b) {
-                    count.incrementAndGet();
+                    lastValues.fill(seriesId, changes, ts, b);
+                    wrapper.sample(seriesId, ts, b);
                 }
-            });
-            return count.get();
+            };
+        }
+
+        lockConcurrent();
+        try {
+            Series<T> series = getSeries(seriesId);
+            series.queryFirst(reverse, rawCb);
+        } catch (IOException e) {
+            throw new EtsdbException(e);
+        } finally {
+            unlockConcurrent();
+        }
+    }
+
+    @Override
+    public long count(String seriesId, long fromTs, long toTs) {
+        lockConcurrent();
+        try {
+            Series<T> series = getSeries(seriesId);
+            return series.count(fromTs, toTs);
         } catch (IOException e) {
             throw new EtsdbException(e);
         } finally {
@@ -368,26 +747,40 @@ public class DatabaseImpl<T> implements Database<T> {
 
     @Override
     public long delete(String seriesId, long fromTs, long toTs) {
+        drain(seriesId);
         lockConcurrent();
         try {
+            if (wal != null) {
+                wal.delete(seriesId, fromTs, toTs);
+            }
             Series<T> series = getSeries(seriesId);
             return series.delete(fromTs, toTs);
         } catch (IOException e) {
             throw new EtsdbException(e);
         } finally {
+            if (lastValues != null) {
+                lastValues.remove(seriesId);
+            }
             unlockConcurrent();
         }
     }
 
     @Override
     public void purge(String seriesId, long toTs) {
+        drain(seriesId);
         lockConcurrent();
         try {
+            if (wal != null) {
+                wal.delete(seriesId, Long.MIN_VALUE, toTs);
+            }
             Series<T> series = getSeries(seriesId);
             series.purge(toTs);
         } catch (IOException e) {
             throw new EtsdbException(e);
         } finally {
+            if (lastValues != null) {
+                lastValues.remove(seriesId);
+            }
             unlockConcurrent();
         }
     }
@@ -397,17 +790,16 @@ public class DatabaseImpl<T> implements Database<T> {
      */
     @Override
     public void deleteSeries(String seriesId) {
+        drain(seriesId);
         lockExclusive();
         try {
-            synchronized (seriesLookup) {
-                purge(seriesId, Long.MAX_VALUE);
+            purge(seriesId, Long.MAX_VALUE);
 
-                File seriesDir = Utils.getSeriesDir(baseDir, seriesId);
-                try {
-                    Utils.delete(seriesDir);
-                } catch (IOException e) {
-                    logger.warn("Error while deleting series " + seriesId, e);
-                }
+            File seriesDir = Utils.getSeriesDir(baseDir, seriesId);
+            try {
+                Utils.delete(seriesDir);
+            } catch (IOException e) {
+                logger.warn("Error while deleting series " + seriesId, e);
             }
         } finally {
             unlockExclusive();
@@ -416,9 +808,17 @@ public class DatabaseImpl<T> implements Database<T> {
 
     @Override
     public void close() throws IOException {
+        // Partition threads take the concurrent lock, so they are stopped first. The writer is kept, so that later
+        // writes are rejected by it instead of being written directly.
+        PartitionedWriter<T> writer = this.writer;
+        if (writer != null) {
+            writer.close();
+        }
+
         lockExclusive();
         AvailableSpace.unregisterInterest(baseDir);
         UsedSpace.unregisterInterest(baseDir);
+        QueueBudget.unregister(this);
         try {
             if (!closed) {
                 if (backdates != null) {
@@ -433,13 +833,23 @@ public class DatabaseImpl<T> implements Database<T> {
                 janitor.terminate();
                 janitor.join();
 
+                if (groupCommit != null) {
+                    groupCommit.terminate();
+                }
+
                 flush(true);
 
                 for (Series<T> series : getSerieses()) {
                     series.close();
                 }
+                if (lastValues != null) {
+                    lastValues.clear();
+                }
+                files.close();
 
-                System.gc();
+                if (wal != null) {
+                    wal.close();
+                }
 
                 // Write a clean indicator into the database properties, so
                 // that we know a corruption check isn't necessary upon next
@@ -451,6 +861,18 @@ public class DatabaseImpl<T> implements Database<T> {
         }
     }
 
+    /**
+     * @return the serializer, for queries that read the samples as doubles.
+     * @throws IllegalStateException if the serializer is not a NumericSerializer.
+     */
+    private NumericSerializer<T> getNumericSerializer() {
+        if (numericSerializer == null) {
+            throw new IllegalStateException("The serializer " + serializer.getClass().getName()
+                    + " does not read numeric values, since it is not a NumericSerializer");
+        }
+        return numericSerializer;
+    }
+
     private Series<T> getSeries(String seriesId) throws IOException {
         if (closed) {
             throw new IOException("Database is closed");
@@ -459,24 +881,20 @@ public class DatabaseImpl<T> implements Database<T> {
         seriesId = sanitizeSeriesId(seriesId);
         Series<T> series = seriesLookup.get(seriesId);
         if (series == null) {
-            synchronized (seriesLookup) {
-                series = seriesLookup.get(seriesId);
-                if (series == null) {
-                    series = new Series<>(this, baseDir, seriesId, serializer);
-                    seriesLookup.put(seriesId, series);
+            // Only creators of the same series wait for each other.
+            series = seriesLookup.computeIfAbsent(seriesId, new Function<String, Series<T>>() {
+                @Override
+                public Series<T> apply(String id) {
+                    return new Series<>(DatabaseImpl.this, baseDir, id, serializer);
                 }
-            }
+            });
         }
         return series;
     }
 
     private List<Series<T>> getSerieses() {
         // serieses: plural for series my precious
-        List<Series<T>> serieses = new ArrayList<>();
-        synchronized (seriesLookup) {
-            serieses.addAll(seriesLookup.values());
-        }
-        return serieses;
+        return new ArrayList<>(seriesLookup.values());
     }
 
     public DBProperties getProperties() {
@@ -514,15 +932,119 @@ public class DatabaseImpl<T> implements Database<T> {
         return queueInfo != null;
     }
 
-    public int flush(boolean force) throws IOException {
+    /**
+     * Applies the queue's overflow policy if the queue is over its budget. This must not be called while holding the
+     * database lock, since the flush process needs it to make room.
+     *
+     * @param seriesId the series to which drops are counted, or null if the caller counts them.
+     * @return false if the writes are to be dropped.
+     */
+    private boolean admit(String seriesId, int count) {
+        if (queueInfo == null || !queueInfo.overBudget()) {
+            return true;
+        }
+
+        boolean admitted;
+        switch (queueInfo.overflowPolicy) {
+            case BLOCK:
+                QueueBudget.requestRelief();
+                long start = System.currentTimeMillis();
+                try {
+                    admitted = QueueBudget.await(queueInfo, queueInfo.blockTimeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    admitted = false;
+                }
+                queueInfo.blockedMillis.addAndGet(System.currentTimeMillis() - start);
+                break;
+            case FLUSH:
+                // If another writer is already flushing, the write is queued over the budget rather than waiting.
+                relieveQueue();
+                if (queueInfo.overBudget()) {
+                    // The rest of the budget is held by other databases.
+                    QueueBudget.requestRelief();
+                }
+                admitted = true;
+                break;
+            default:
+                admitted = false;
+        }
+
+        if (!admitted && seriesId != null) {
+            queueInfo.dropped(seriesId, count);
+        }
+        return admitted;
+    }
+
+    /**
+     * Writes the queues of the shards with the most queued bytes until the queue is back under its low water mark.
+     */
+    private void relieveQueue() {
+        if (!queueInfo.relieving.compareAndSet(false, true)) {
+            return;
+        }
+
         lockConcurrent();
         try {
-            int closures = 0;
+            if (!closed) {
+                relieveQueueLocked();
+            }
+        } finally {
+            unlockConcurrent();
+            queueInfo.relieving.set(false);
+        }
+    }
+
+    private void relieveQueueLocked() {
+        List<DataShard> shards = new ArrayList<>();
+        for (Series<T> series : getSerieses()) {
+            series.getQueuedShards(shards);
+        }
 
+        // The sizes are read without locks, so they are only used to choose the order.
+        final Map<DataShard, Long> bytes = new HashMap<>();
+        for (DataShard shard : shards) {
+            bytes.put(shard, shard.getQueuedBytes());
+        }
+        Collections.sort(shards, new Comparator<DataShard>() {
+            @Override
+            public int compare(DataShard a, DataShard b) {
+                return Long.compare(bytes.get(b), bytes.get(a));
+            }
+        });
+
+        for (DataShard shard : shards) {
+            if (!queueInfo.overLowWater()) {
+                break;
+            }
+            try {
+                shard.flushQueue();
+            } catch (IOException e) {
+                logger.warn("Failed to write the queue of series " + shard.getSeriesId() + ", shard "
+                        + shard.getShardId(), e);
+            }
+        }
+    }
+
+    /**
+     * Has the flush process run now, rather than at its next interval, to make room in the write queue.
+     */
+    void flushSoon() {
+        janitor.flushSoon();
+    }
+
+    public void flush(boolean force) throws IOException {
+        PartitionedWriter<T> writer = this.writer;
+        if (force && writer != null) {
+            writer.drain();
+        }
+
+        lockConcurrent();
+        try {
             long runtime = System.currentTimeMillis();
             List<Series<T>> serieses = getSerieses();
             for (Series<T> series : serieses) {
-                closures += series.flush(runtime, force);
+                series.flush(runtime, force);
             }
 
             // If the size of the queue still exceeds the max size, start force flushing random series until it doesn't.
@@ -536,17 +1058,29 @@ public class DatabaseImpl<T> implements Database<T> {
 
                         int index = queueInfo.random.nextInt(serieses.size());
                         Series<T> series = serieses.remove(index);
-                        closures += series.flush(runtime, true);
+                        series.flush(runtime, true);
                     }
                 }
 
-                int discards = queueInfo.recentDiscards.getAndSet(0);
-                if (discards > 0) {
-                    logger.warn("Discarded " + discards + " writes");
+                if (queueInfo.overBudget()) {
+                    logger.info("Write queue over budget. Writing the largest lists to reduce.");
+                    relieveQueueLocked();
+                }
+
+                List<Map.Entry<String, Long>> drops = queueInfo.takeRecentDrops();
+                if (!drops.isEmpty()) {
+                    long total = 0;
+                    for (Map.Entry<String, Long> e : drops) {
+                        total += e.getValue();
+                    }
+                    logger.warn("Discarded " + total + " writes in " + drops.size() + " series, most in "
+                            + drops.subList(0, Math.min(drops.size(), 10)));
                 }
-            }
 
-            return closures;
+                if (wal != null) {
+                    wal.truncate();
+                }
+            }
         } finally {
             unlockConcurrent();
         }
@@ -657,7 +1191,37 @@ public class DatabaseImpl<T> implements Database<T> {
 
     @Override
     public long getForcedClose() {
-        return forcedClose.get();
+        return files.evictions.get();
+    }
+
+    @Override
+    public long getFileHandleHits() {
+        return files.hits.get();
+    }
+
+    @Override
+    public void setFileHandleHitsHandler(Handler<Long> handler) {
+        files.hits.setHandler(handler);
+    }
+
+    @Override
+    public long getFileHandleMisses() {
+        return files.misses.get();
+    }
+
+    @Override
+    public void setFileHandleMissesHandler(Handler<Long> handler) {
+        files.misses.setHandler(handler);
+    }
+
+    @Override
+    public long getFileHandleEvictions() {
+        return files.evictions.get();
+    }
+
+    @Override
+    public void setFileHandleEvictionsHandler(Handler<Long> handler) {
+        files.evictions.setHandler(handler);
     }
 
     @Override
@@ -670,6 +1234,30 @@ public class DatabaseImpl<T> implements Database<T> {
         janitor.setFlushTimeHandler(handler);
     }
 
+    @Override
+    public int getLastCommitSize() {
+        return groupCommit == null ? 0 : groupCommit.lastCommitSize;
+    }
+
+    @Override
+    public void setLastCommitSizeHandler(Handler<Integer> handler) {
+        if (groupCommit != null) {
+            groupCommit.setCommitSizeHandler(handler);
+        }
+    }
+
+    @Override
+    public int getLastCommitMillis() {
+        return groupCommit == null ? 0 : groupCommit.lastCommitMillis;
+    }
+
+    @Override
+    public void setLastCommitMillisHandler(Handler<Integer> handler) {
+        if (groupCommit != null) {
+            groupCommit.setCommitTimeHandler(handler);
+        }
+    }
+
     @Override
     public int getQueueSize() {
         if (queueInfo == null) {
@@ -685,6 +1273,51 @@ public class DatabaseImpl<T> implements Database<T> {
         }
     }
 
+    @Override
+    public long getQueueBytes() {
+        if (queueInfo == null) {
+            return 0;
+        }
+        return queueInfo.queueBytes.get();
+    }
+
+    @Override
+    public void setQueueBytesHandler(Handler<Long> handler) {
+        if (queueInfo != null) {
+            queueInfo.queueBytes.setHandler(handler);
+        }
+    }
+
+    @Override
+    public long getQueueBlockedMillis() {
+        if (queueInfo == null) {
+            return 0;
+        }
+        return queueInfo.blockedMillis.get();
+    }
+
+    @Override
+    public void setQueueBlockedMillisHandler(Handler<Long> handler) {
+        if (queueInfo != null) {
+            queueInfo.blockedMillis.setHandler(handler);
+        }
+    }
+
+    @Override
+    public long getQueueDrops() {
+        if (queueInfo == null) {
+            return 0;
+        }
+        return queueInfo.drops.get();
+    }
+
+    @Override
+    public void setQueueDropsHandler(Handler<Long> handler) {
+        if (queueInfo != null) {
+            queueInfo.drops.setHandler(handler);
+        }
+    }
+
     @Override
     public int getOpenShards() {
         return openShards.get();
@@ -718,4 +1351,50 @@ public class DatabaseImpl<T> implements Database<T> {
             }
         }
     }
+
+    /**
+     * Passes views of the read buffer, reusing the view of the previous sample.
+     */
+    class ViewCallbackWrapper implements RawQueryCallback {
+
+        private final QueryCallback<T> cb;
+        private T view;
+
+        public ViewCallbackWrapper(QueryCallback<T> cb) {
+            this.cb = cb;
+        }
+
+        @Override
+        public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+            T t = serializer.view(b, ts, view);
+            if (t != null) {
+                view = t;
+                cb.sample(seriesId, ts, t);
+            }
+        }
+    }
+
+    /**
+     * Converts samples straight from the read buffer, skipping those that are not numeric.
+     */
+    class DoubleCallbackWrapper implements RawQueryCallback {
+
+        private final NumericSerializer<?> serializer;
+        private final DoubleQueryCallback cb;
+
+        public DoubleCallbackWrapper(NumericSerializer<?> serializer, DoubleQueryCallback cb) {
+            this.serializer = serializer;
+            this.cb = cb;
+        }
+
+        @Override
+        public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+            byte[] data = b.getBuffer();
+            int off = b.getReadOffset();
+            int len = b.getAvailable();
+            if (serializer.isDouble(data, off, len)) {
+                cb.sample(seriesId, ts, serializer.toDouble(data, off, len));
+            }
+        }
+    }
 }
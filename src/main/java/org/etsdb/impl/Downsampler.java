@@ -0,0 +1,294 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.Downsampling;
+import org.etsdb.NumericSerializer;
+
+import java.util.Arrays;
+
+/**
+ * Selects the samples of a downsampling query as they are read by the shard scan. The numeric values are converted
+ * straight from the read buffer by the serializer, and only the selected samples are passed on to the callback, so
+ * only those are deserialized. Samples that are not numeric are skipped. The range is divided into columns of equal
+ * length, of which M4 holds one at a time and LTTB two.
+ */
+abstract class Downsampler implements RawQueryCallback {
+    private final NumericSerializer<?> serializer;
+    private final RawQueryCallback cb;
+    private final long fromTs;
+    private final long width;
+    private final ByteArrayBuilder out = new ByteArrayBuilder();
+
+    static Downsampler create(NumericSerializer<?> serializer, Downsampling method, long fromTs, long toTs, int maxPoints,
+            RawQueryCallback cb) {
+        if (method == Downsampling.M4) {
+            return new M4(serializer, fromTs, toTs, maxPoints / 4, cb);
+        }
+        // The first and last samples are returned besides one per bucket.
+        return new Lttb(serializer, fromTs, toTs, maxPoints - 2, cb);
+    }
+
+    Downsampler(NumericSerializer<?> serializer, long fromTs, long toTs, int columns, RawQueryCallback cb) {
+        this.serializer = serializer;
+        this.cb = cb;
+        this.fromTs = fromTs;
+        long span = toTs - fromTs;
+        width = span / columns + (span % columns == 0 ? 0 : 1);
+    }
+
+    @Override
+    public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+        byte[] data = b.getBuffer();
+        int off = b.getReadOffset();
+        int len = b.getAvailable();
+        if (serializer.isDouble(data, off, len)) {
+            sample(seriesId, ts, serializer.toDouble(data, off, len), data, off, len);
+        }
+    }
+
+    abstract void sample(String seriesId, long ts, double value, byte[] data, int off, int len);
+
+    /**
+     * Returns the remaining selected samples. Called when the query is done.
+     */
+    abstract void finish(String seriesId);
+
+    long getColumn(long ts) {
+        return (ts - fromTs) / width;
+    }
+
+    void emit(String seriesId, long ts, byte[] data, int off, int len) {
+        out.clear();
+        out.put(data, off, len);
+        cb.sample(seriesId, ts, out);
+    }
+
+    /**
+     * A copy of a sample, whose buffer is reused when it is set to another sample.
+     */
+    private static class Point {
+        long ts;
+        double value;
+        byte[] data = new byte[16];
+        int length;
+
+        void set(long ts, double value, byte[] data, int off, int len) {
+            if (this.data.length < len) {
+                this.data = new byte[len];
+            }
+            System.arraycopy(data, off, this.data, 0, len);
+            this.ts = ts;
+            this.value = value;
+            length = len;
+        }
+    }
+
+    /**
+     * Copies of the samples of a bucket, with their data appended to one buffer.
+     */
+    private static class Samples {
+        long[] ts = new long[16];
+        double[] values = new double[16];
+        // The offsets of the data of the samples, and the end of the data of the last.
+        int[] offsets = new int[17];
+        int size;
+        byte[] data = new byte[256];
+
+        // The sums for the average, with the time stamps relative to the first sample to keep their precision.
+        long tsSum;
+        double valueSum;
+
+        void add(long ts, double value, byte[] data, int off, int len) {
+            if (size == this.ts.length) {
+                this.ts = Arrays.copyOf(this.ts, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2 + 1);
+            }
+            this.ts[size] = ts;
+            values[size] = value;
+            int end = offsets[size] + len;
+            if (end > this.data.length) {
+                this.data = Arrays.copyOf(this.data, Math.max(end, this.data.length * 2));
+            }
+            System.arraycopy(data, off, this.data, offsets[size], len);
+            offsets[size + 1] = end;
+            size++;
+            tsSum += ts - this.ts[0];
+            valueSum += value;
+        }
+
+        /**
+         * Removes the last sample from the averages and the size, but keeps its data until the samples are cleared.
+         */
+        void removeLast() {
+            size--;
+            tsSum -= ts[size] - ts[0];
+            valueSum -= values[size];
+        }
+
+        void clear() {
+            size = 0;
+            tsSum = 0;
+            valueSum = 0;
+        }
+    }
+
+    private static class M4 extends Downsampler {
+        private final Point first = new Point();
+        private final Point last = new Point();
+        private final Point min = new Point();
+        private final Point max = new Point();
+        private long column;
+        private boolean empty = true;
+
+        M4(NumericSerializer<?> serializer, long fromTs, long toTs, int columns, RawQueryCallback cb) {
+            super(serializer, fromTs, toTs, columns, cb);
+        }
+
+        @Override
+        void sample(String seriesId, long ts, double value, byte[] data, int off, int len) {
+            long c = getColumn(ts);
+            if (!empty && c != column) {
+                finishColumn(seriesId);
+            }
+
+            if (empty) {
+                column = c;
+                first.set(ts, value, data, off, len);
+                min.set(ts, value, data, off, len);
+                max.set(ts, value, data, off, len);
+                empty = false;
+            } else if (value < min.value) {
+                min.set(ts, value, data, off, len);
+            } else if (value > max.value) {
+                max.set(ts, value, data, off, len);
+            }
+            last.set(ts, value, data, off, len);
+        }
+
+        @Override
+        void finish(String seriesId) {
+            if (!empty) {
+                finishColumn(seriesId);
+            }
+        }
+
+        private void finishColumn(String seriesId) {
+            // The selected samples are returned in time order, and each only once.
+            Point early = min.ts <= max.ts ? min : max;
+            Point late = early == min ? max : min;
+            emit(seriesId, first);
+            if (early.ts != first.ts) {
+                emit(seriesId, early);
+            }
+            if (late.ts != early.ts && late.ts != last.ts) {
+                emit(seriesId, late);
+            }
+            if (last.ts != first.ts && last.ts != early.ts) {
+                emit(seriesId, last);
+            }
+            empty = true;
+        }
+
+        private void emit(String seriesId, Point point) {
+            emit(seriesId, point.ts, point.data, 0, point.length);
+        }
+    }
+
+    private static class Lttb extends Downsampler {
+        // The complete bucket that waits for the average of the next one, and the bucket that is being read.
+        private Samples pending = new Samples();
+        private Samples current = new Samples();
+        private long currentBucket;
+
+        // The sample that was returned last, which is the first corner of the next triangle.
+        private boolean started;
+        private long selectedTs;
+        private double selectedValue;
+
+        Lttb(NumericSerializer<?> serializer, long fromTs, long toTs, int buckets, RawQueryCallback cb) {
+            super(serializer, fromTs, toTs, buckets, cb);
+        }
+
+        @Override
+        void sample(String seriesId, long ts, double value, byte[] data, int off, int len) {
+            if (!started) {
+                // The first sample is always returned.
+                emit(seriesId, ts, data, off, len);
+                selectedTs = ts;
+                selectedValue = value;
+                started = true;
+                return;
+            }
+
+            long bucket = getColumn(ts);
+            if (current.size > 0 && bucket != currentBucket) {
+                if (pending.size > 0) {
+                    select(seriesId, pending, current.ts[0] + (double) current.tsSum / current.size,
+                            current.valueSum / current.size);
+                }
+                Samples samples = pending;
+                pending = current;
+                current = samples;
+                current.clear();
+            }
+            currentBucket = bucket;
+            current.add(ts, value, data, off, len);
+        }
+
+        @Override
+        void finish(String seriesId) {
+            // The last sample is always returned, so it is taken out of its bucket.
+            Samples lastBucket = current.size > 0 ? current : pending;
+            if (lastBucket.size == 0) {
+                return;
+            }
+            lastBucket.removeLast();
+            int last = lastBucket.size;
+            long lastTs = lastBucket.ts[last];
+            double lastValue = lastBucket.values[last];
+
+            if (lastBucket == current && pending.size > 0) {
+                if (current.size > 0) {
+                    select(seriesId, pending, current.ts[0] + (double) current.tsSum / current.size,
+                            current.valueSum / current.size);
+                } else {
+                    select(seriesId, pending, lastTs, lastValue);
+                }
+            }
+            if (lastBucket.size > 0) {
+                select(seriesId, lastBucket, lastTs, lastValue);
+            }
+            emit(seriesId, lastBucket, last);
+        }
+
+        /**
+         * Returns the sample of the bucket that forms the largest triangle with the sample that was returned before it
+         * and the given point.
+         */
+        private void select(String seriesId, Samples bucket, double nextTs, double nextValue) {
+            // Time stamps are taken relative to the first corner to keep their precision.
+            double cx = nextTs - selectedTs;
+            double cy = nextValue - selectedValue;
+            int best = 0;
+            double bestArea = -1;
+            for (int i = 0; i < bucket.size; i++) {
+                double bx = bucket.ts[i] - selectedTs;
+                double by = bucket.values[i] - selectedValue;
+                double area = Math.abs(bx * cy - cx * by);
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            emit(seriesId, bucket, best);
+            selectedTs = bucket.ts[best];
+            selectedValue = bucket.values[best];
+        }
+
+        private void emit(String seriesId, Samples bucket, int i) {
+            int off = bucket.offsets[i];
+            emit(seriesId, bucket.ts[i], bucket.data, off, bucket.offsets[i + 1] - off);
+        }
+    }
+}
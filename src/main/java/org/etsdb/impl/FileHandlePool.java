@@ -0,0 +1,256 @@
+package org.etsdb.impl;
+
+import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The open data file handles of the database, limited to the maximum number of open files. There are two kinds of
+ * handle: readers, which are keyed by file and shared by all of the queries of the file, which use positional reads, and
+ * appenders, which are keyed by shard and are the shards' data output streams. When a handle is opened and the limit
+ * is exceeded, the least recently used handles are closed. Handles that are being used, i.e. readers with a query in
+ * progress and appenders whose shard is locked, are skipped, so the limit can only be exceeded while all of the handles
+ * are in use.
+ * <p>
+ * Handles are found without locking, and their last use is a time stamp rather than a position in a list, so that
+ * using a handle does not contend with other threads. Only opening a handle, which may evict others, is serialized.
+ */
+class FileHandlePool {
+    private static final Logger logger = LoggerFactory.getLogger(FileHandlePool.class.getName());
+
+    private final DatabaseImpl<?> db;
+    private final int capacity;
+    private final ConcurrentMap<Object, Handle> handles = new ConcurrentHashMap<>();
+
+    final NotifyAtomicLong hits = new NotifyAtomicLong();
+    final NotifyAtomicLong misses = new NotifyAtomicLong();
+    final NotifyAtomicLong evictions = new NotifyAtomicLong();
+
+    /**
+     * @param capacity the maximum number of open handles, or 0 for no limit.
+     */
+    FileHandlePool(DatabaseImpl<?> db, int capacity) {
+        this.db = db;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a reader of the given file, which must exist. The reader must be released when the caller is done.
+     */
+    Reader getReader(File file) throws IOException {
+        Handle handle = handles.get(file);
+        if (handle instanceof Reader && ((Reader) handle).acquire()) {
+            hits.incrementAndGet();
+            return (Reader) handle;
+        }
+
+        misses.incrementAndGet();
+        Reader reader = new Reader(file, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        db.openFiles.incrementAndGet();
+        reader.acquire();
+        if (handles.putIfAbsent(file, reader) != null) {
+            // Another query opened the file at the same time. Use this reader once.
+            reader.retire();
+        }
+        evict();
+        return reader;
+    }
+
+    /**
+     * Closes the reader of the given file once its queries are done, so that the file can be replaced or deleted.
+     */
+    void retire(File file) {
+        Handle handle = handles.get(file);
+        if (handle instanceof Reader) {
+            ((Reader) handle).retire();
+        }
+    }
+
+    /**
+     * Called by a shard that has opened its data output stream. The shard is write locked.
+     */
+    Appender opened(DataShard shard) {
+        misses.incrementAndGet();
+        Appender appender = new Appender(shard);
+        handles.put(shard, appender);
+        db.openFiles.incrementAndGet();
+        evict();
+        return appender;
+    }
+
+    /**
+     * Called by a shard that is writing to its open data output stream.
+     */
+    void used(Appender appender) {
+        appender.used();
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Called by a shard that has closed its data output stream.
+     */
+    void closed(Appender appender) {
+        if (handles.remove(appender.shard, appender)) {
+            db.openFiles.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes the readers that are left. The shards close their own appenders.
+     */
+    void close() {
+        for (Handle handle : handles.values()) {
+            if (handle instanceof Reader) {
+                ((Reader) handle).retire();
+            }
+        }
+    }
+
+    private synchronized void evict() {
+        if (capacity <= 0) {
+            return;
+        }
+
+        Set<Handle> busy = null;
+        while (handles.size() > capacity) {
+            Handle lru = null;
+            for (Handle handle : handles.values()) {
+                if ((busy == null || !busy.contains(handle)) && (lru == null || handle.lastUse - lru.lastUse < 0)) {
+                    lru = handle;
+                }
+            }
+            if (lru == null) {
+                // Everything is in use.
+                break;
+            }
+
+            if (lru.tryClose()) {
+                evictions.incrementAndGet();
+            } else {
+                if (busy == null) {
+                    busy = new HashSet<>();
+                }
+                busy.add(lru);
+            }
+        }
+    }
+
+    abstract static class Handle {
+        volatile long lastUse = System.nanoTime();
+
+        void used() {
+            lastUse = System.nanoTime();
+        }
+
+        /**
+         * Closes the handle if it is not in use.
+         *
+         * @return true if the handle was closed.
+         */
+        abstract boolean tryClose();
+    }
+
+    class Reader extends Handle {
+        private final File file;
+        private final FileChannel channel;
+        private int users;
+        private boolean retired;
+        private boolean closed;
+
+        Reader(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads from the given position of the file, without changing the channel's position, so that queries can
+         * share the channel.
+         */
+        int read(ByteBuffer buffer, long position) throws IOException {
+            return channel.read(buffer, position);
+        }
+
+        synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            users++;
+            used();
+            return true;
+        }
+
+        void release() {
+            boolean close;
+            synchronized (this) {
+                users--;
+                close = retired && users == 0;
+            }
+            if (close) {
+                closeChannel();
+            }
+        }
+
+        void retire() {
+            boolean close;
+            synchronized (this) {
+                retired = true;
+                close = users == 0;
+            }
+            handles.remove(file, this);
+            if (close) {
+                closeChannel();
+            }
+        }
+
+        @Override
+        boolean tryClose() {
+            synchronized (this) {
+                if (users > 0) {
+                    return false;
+                }
+                retired = true;
+            }
+            handles.remove(file, this);
+            closeChannel();
+            return true;
+        }
+
+        private void closeChannel() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close " + file, e);
+            }
+            db.openFiles.decrementAndGet();
+        }
+    }
+
+    class Appender extends Handle {
+        private final DataShard shard;
+
+        Appender(DataShard shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        boolean tryClose() {
+            return shard.tryCloseOutput();
+        }
+    }
+}
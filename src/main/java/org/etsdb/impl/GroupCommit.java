@@ -0,0 +1,152 @@
+package org.etsdb.impl;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Flushes the buffered direct writes of all shards together, so that a burst of writes costs one flush per shard
+ * rather than one per write. Shards register themselves when they buffer a write, and a commit flushes, and optionally
+ * forces, every registered shard. Commits are done every interval, or sooner if the number of buffered writes reaches
+ * the commit size.
+ */
+class GroupCommit implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommit.class.getName());
+
+    int lastCommitSize;
+    int lastCommitMillis;
+    private final DatabaseImpl<?> db;
+    private final int interval;
+    private final int size;
+    /**
+     * The minimum time between forces, or 0 to never force.
+     */
+    private final int forceInterval;
+
+    private Set<DataShard> shards = new HashSet<>();
+    private int pending;
+    private long nextForce;
+
+    private Thread thread;
+    private volatile boolean running;
+    private Handler<Integer> sizeHandler;
+    private Handler<Integer> timeHandler;
+
+    GroupCommit(DatabaseImpl<?> db, int interval, int size, int forceInterval) {
+        this.db = db;
+        this.interval = interval;
+        this.size = size;
+        this.forceInterval = forceInterval;
+    }
+
+    void setCommitSizeHandler(Handler<Integer> handler) {
+        this.sizeHandler = handler;
+    }
+
+    void setCommitTimeHandler(Handler<Integer> handler) {
+        this.timeHandler = handler;
+    }
+
+    void initiate() {
+        running = true;
+        nextForce = System.currentTimeMillis() + forceInterval;
+        thread = new Thread(this, "Group commit " + db.getBaseDir().getPath());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Called by a shard, while it is write locked, after it buffers writes.
+     */
+    synchronized void written(DataShard shard, int count) {
+        shards.add(shard);
+        pending += count;
+        if (pending >= size) {
+            notify();
+        }
+    }
+
+    /**
+     * Stops the commit thread after a final commit.
+     */
+    void terminate() {
+        synchronized (this) {
+            running = false;
+            notify();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            // no op
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                if (running && pending < size) {
+                    try {
+                        wait(interval);
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            }
+
+            try {
+                commit();
+            } catch (Exception e) {
+                logger.error("Error during group commit", e);
+            }
+
+            if (!running) {
+                break;
+            }
+        }
+    }
+
+    private void commit() {
+        Set<DataShard> committing;
+        int count;
+        synchronized (this) {
+            if (shards.isEmpty()) {
+                return;
+            }
+            committing = shards;
+            count = pending;
+            shards = new HashSet<>();
+            pending = 0;
+        }
+
+        long start = System.currentTimeMillis();
+        boolean force = forceInterval > 0 && start >= nextForce;
+        for (DataShard shard : committing) {
+            shard.lockWrite();
+            try {
+                shard.commit(force);
+            } catch (Exception e) {
+                logger.warn("Failed to commit shard " + shard.getShardId(), e);
+            } finally {
+                shard.unlockWrite();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (force) {
+            nextForce = now + forceInterval;
+        }
+        lastCommitSize = count;
+        lastCommitMillis = (int) (now - start);
+        Handler<Integer> handler = sizeHandler;
+        if (handler != null) {
+            handler.handle(lastCommitSize);
+        }
+        handler = timeHandler;
+        if (handler != null) {
+            handler.handle(lastCommitMillis);
+        }
+    }
+}
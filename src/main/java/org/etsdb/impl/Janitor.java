@@ -20,11 +20,7 @@ class Janitor implements Runnable {
     private int flushInterval;
     private long nextFileLockCheck;
     private long nextFlush;
-
-    /**
-     * The number of meta closures that have been done since the last GC.
-     */
-    private int fileClosures;
+    private boolean flushRequested;
 
     private volatile boolean running;
 
@@ -62,6 +58,14 @@ class Janitor implements Runnable {
         thread.start();
     }
 
+    /**
+     * Runs the flush now rather than at the next interval.
+     */
+    synchronized void flushSoon() {
+        flushRequested = true;
+        notify();
+    }
+
     void terminate() {
         running = false;
     }
@@ -86,15 +90,16 @@ class Janitor implements Runnable {
         }
 
         long sleep = next - System.currentTimeMillis();
-        if (sleep > 0) {
-            synchronized (this) {
-                if (running) {
-                    try {
-                        wait(sleep);
-                    } catch (InterruptedException ignore) {
-                    }
+        boolean flushNow;
+        synchronized (this) {
+            if (sleep > 0 && running && !flushRequested) {
+                try {
+                    wait(sleep);
+                } catch (InterruptedException ignore) {
                 }
             }
+            flushNow = flushRequested;
+            flushRequested = false;
         }
 
         if (!running) {
@@ -111,25 +116,10 @@ class Janitor implements Runnable {
             return;
         }
 
-        if (now >= nextFlush) {
+        if (now >= nextFlush || flushNow) {
             long time = System.currentTimeMillis();
-            boolean gc = false;
             try {
-                fileClosures += db.flush(false);
-
-                // A GC is required for the mapped buffers to be closed.
-                if (running) {
-                    if (db.tooManyFiles() || fileClosures > db.maxOpenFiles / 2) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug(
-                                    "Running garbage collection. Files to close: " + fileClosures);
-                        }
-                        System.gc();
-                        gc = true;
-                        db.openFiles.addAndGet(-fileClosures);
-                        fileClosures = 0;
-                    }
-                }
+                db.flush(false);
             } catch (IOException e) {
                 logger.error("Exception during scheduled flush", e);
             }
@@ -155,7 +145,7 @@ class Janitor implements Runnable {
             // sleep time exceed the flush interval * 4.
             time *= 10;
 
-            if (gc || time < flushInterval) {
+            if (time < flushInterval) {
                 time = flushInterval;
             } else if (time > flushInterval * 4) {
                 time = flushInterval * 4;
@@ -0,0 +1,151 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The last samples of recently used series, so that queryLast and the end of a series' time range can be answered
+ * without opening the series' last shard. A series is added when its last sample is queried, which reads it from the
+ * shard summary, and is then kept up to date by the writes to it. Writes do not add series, because a write to an
+ * earlier shard may not be the last sample of the series. The cache is limited to a number of bytes, and the least
+ * recently used series are evicted.
+ * <p>
+ * Deletes and purges remove the series from the cache. A query that misses the cache only adds its result if nothing
+ * was removed while it read, since it may have read a sample that was deleted in the meantime, and if the series was
+ * not written, since the write may have been later than the sample that it read. Writes to series that are not cached
+ * are counted in a fixed number of slots by the hash of the series id, so a write to another series of the same slot
+ * also keeps the result out, which is only a missed fill.
+ */
+class LastValueCache {
+    /**
+     * The estimated memory of an entry besides its data and the series id.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int WRITE_SLOTS = 1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, LastValue> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long removals;
+    private final long[] writes = new long[WRITE_SLOTS];
+
+    LastValueCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the last sample of the series to the callback if it is in the cache.
+     *
+     * @return true if the series was in the cache.
+     */
+    boolean query(String seriesId, RawQueryCallback cb) {
+        long ts;
+        ByteArrayBuilder b;
+        synchronized (this) {
+            LastValue value = entries.get(seriesId);
+            if (value == null) {
+                return false;
+            }
+            ts = value.ts;
+            b = new ByteArrayBuilder(value.length);
+            b.put(value.data, 0, value.length);
+        }
+        cb.sample(seriesId, ts, b);
+        return true;
+    }
+
+    /**
+     * @return the time stamp of the last sample of the series, or null if the series is not in the cache.
+     */
+    synchronized Long getTimestamp(String seriesId) {
+        LastValue value = entries.get(seriesId);
+        return value == null ? null : value.ts;
+    }
+
+    /**
+     * @return the number of changes so far that keep a query of the series from filling the cache, to pass to fill.
+     */
+    synchronized long getChanges(String seriesId) {
+        return removals + writes[getSlot(seriesId)];
+    }
+
+    /**
+     * Updates the last sample of the series if it is in the cache and the sample is not earlier.
+     */
+    synchronized void written(String seriesId, long ts, byte[] data, int off, int len) {
+        LastValue value = entries.get(seriesId);
+        if (value == null) {
+            writes[getSlot(seriesId)]++;
+        } else if (ts >= value.ts) {
+            set(value, ts, data, off, len);
+            evict();
+        }
+    }
+
+    /**
+     * Adds the last sample of a series that was read by a query, unless the series was written or a series was
+     * removed since the given number of changes was taken.
+     */
+    synchronized void fill(String seriesId, long changes, long ts, ByteArrayBuilder b) {
+        if (changes != getChanges(seriesId)) {
+            return;
+        }
+
+        LastValue value = entries.get(seriesId);
+        if (value == null) {
+            value = new LastValue();
+            entries.put(seriesId, value);
+            bytes += ENTRY_OVERHEAD + seriesId.length() * 2;
+        } else if (ts < value.ts) {
+            return;
+        }
+        set(value, ts, b.getBuffer(), b.getReadOffset(), b.getAvailable());
+        evict();
+    }
+
+    synchronized void remove(String seriesId) {
+        removals++;
+        LastValue value = entries.remove(seriesId);
+        if (value != null) {
+            bytes -= ENTRY_OVERHEAD + seriesId.length() * 2 + value.data.length;
+        }
+    }
+
+    synchronized void clear() {
+        removals++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static int getSlot(String seriesId) {
+        return (seriesId.hashCode() & 0x7fffffff) % WRITE_SLOTS;
+    }
+
+    private void set(LastValue value, long ts, byte[] data, int off, int len) {
+        if (value.data.length < len || value.data.length > len * 2) {
+            bytes += len - value.data.length;
+            value.data = new byte[len];
+        }
+        System.arraycopy(data, off, value.data, 0, len);
+        value.length = len;
+        value.ts = ts;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, LastValue>> iter = entries.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            Map.Entry<String, LastValue> eldest = iter.next();
+            bytes -= ENTRY_OVERHEAD + eldest.getKey().length() * 2 + eldest.getValue().data.length;
+            iter.remove();
+        }
+    }
+
+    private static class LastValue {
+        long ts;
+        byte[] data = new byte[0];
+        int length;
+    }
+}
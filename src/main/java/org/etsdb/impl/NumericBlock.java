@@ -0,0 +1,256 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+
+import java.io.IOException;
+
+/**
+ * A block of numeric samples that is stored as a single record, compressed as described in Facebook's Gorilla paper.
+ * Time offsets are stored as deltas of deltas, and values as the XOR of the value with the previous value, so that
+ * regularly sampled and slowly changing series take only a few bits per sample.
+ * <p>
+ * A block record is laid out like a regular sample record, but with the BLOCK_HEADER, and with the time offset of the
+ * first sample in the block. The block data is: the numeric type of the samples (1 byte), the number of samples (2
+ * bytes), the raw bits of the first value (8 bytes), and then the bit stream of the remaining samples.
+ * <p>
+ * All samples in a block have the same numeric type, as determined by the database's serializer.
+ */
+class NumericBlock {
+    /**
+     * The maximum number of samples in a block. This keeps the worst case block length, about 14 bytes per sample,
+     * within the maximum record data length.
+     */
+    static final int MAX_SAMPLES = 512;
+
+    private final long[] offsets = new long[MAX_SAMPLES];
+    private final long[] values = new long[MAX_SAMPLES];
+    private int type = -1;
+    private int size;
+
+    // Bit stream state
+    private byte[] bits = new byte[1024];
+    private int bitPosition;
+    private byte[] input;
+    private int bitLimit;
+
+    int getType() {
+        return type;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isFull() {
+        return size == MAX_SAMPLES;
+    }
+
+    long getOffset(int index) {
+        return offsets[index];
+    }
+
+    double getValue(int index) {
+        return Double.longBitsToDouble(values[index]);
+    }
+
+    void clear() {
+        size = 0;
+        type = -1;
+    }
+
+    /**
+     * Adds a sample to the block. The block must not be full, samples must be added in time order, and all samples
+     * must have the same type.
+     */
+    void add(int type, long offset, double value) {
+        this.type = type;
+        offsets[size] = offset;
+        values[size] = Double.doubleToRawLongBits(value);
+        size++;
+    }
+
+    //
+    //
+    // Writing
+    //
+    void write(ChecksumOutputStream out) throws IOException {
+        bitPosition = 0;
+        long prevOffset = offsets[0];
+        long prevDelta = 0;
+        long prevValue = values[0];
+        int prevLeading = -1;
+        int prevTrailing = 0;
+
+        for (int i = 1; i < size; i++) {
+            // Time offset
+            long delta = offsets[i] - prevOffset;
+            long dod = delta - prevDelta;
+            if (dod == 0)
+                writeBits(0, 1);
+            else if (dod >= -63 && dod <= 64) {
+                writeBits(0x2, 2);
+                writeBits(dod, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                writeBits(0x6, 3);
+                writeBits(dod, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                writeBits(0xe, 4);
+                writeBits(dod, 12);
+            } else {
+                writeBits(0xf, 4);
+                writeBits(dod, 32);
+            }
+            prevOffset = offsets[i];
+            prevDelta = delta;
+
+            // Value
+            long xor = values[i] ^ prevValue;
+            if (xor == 0)
+                writeBits(0, 1);
+            else {
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (prevLeading != -1 && leading >= prevLeading && trailing >= prevTrailing) {
+                    // Fits in the previous window.
+                    writeBits(0x2, 2);
+                    writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                } else {
+                    int meaningful = 64 - leading - trailing;
+                    writeBits(0x3, 2);
+                    writeBits(leading, 5);
+                    // A length of 64 is stored as 0.
+                    writeBits(meaningful, 6);
+                    writeBits(xor >>> trailing, meaningful);
+                    prevLeading = leading;
+                    prevTrailing = trailing;
+                }
+            }
+            prevValue = values[i];
+        }
+
+        int bitBytes = (bitPosition + 7) >> 3;
+        int length = 1 + 2 + 8 + bitBytes;
+
+        out.write(Utils.BLOCK_HEADER);
+        Utils.write4ByteUnsigned(out, offsets[0]);
+        Utils.writeCompactInt(out, length);
+        out.write(type);
+        out.write(size >> 8);
+        out.write(size);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (values[0] >> shift));
+        out.write(bits, 0, bitBytes);
+        out.writeSum();
+    }
+
+    private void writeBits(long value, int count) {
+        int required = (bitPosition + count + 7) >> 3;
+        if (required > bits.length) {
+            byte[] b = new byte[Math.max(bits.length << 1, required)];
+            System.arraycopy(bits, 0, b, 0, bits.length);
+            bits = b;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            int index = bitPosition >> 3;
+            if ((bitPosition & 7) == 0)
+                bits[index] = 0;
+            if (((value >>> i) & 1) != 0)
+                bits[index] |= (byte) (0x80 >>> (bitPosition & 7));
+            bitPosition++;
+        }
+    }
+
+    //
+    //
+    // Reading
+    //
+
+    /**
+     * Decodes the block data in the given builder.
+     *
+     * @param firstOffset the time offset from the record header
+     */
+    void read(long firstOffset, ByteArrayBuilder b) throws BadRowException {
+        if (b.getAvailable() < 11)
+            throw new BadRowException("Block error: too short: " + b.getAvailable());
+        type = b.getByte();
+        int count = b.getByte() << 8 | b.getByte();
+        if (count < 1 || count > MAX_SAMPLES)
+            throw new BadRowException("Block error: invalid sample count: " + count);
+        long prevValue = b.getLong();
+
+        input = b.getBuffer();
+        bitPosition = b.getReadOffset() << 3;
+        bitLimit = (b.getReadOffset() + b.getAvailable()) << 3;
+
+        offsets[0] = firstOffset;
+        values[0] = prevValue;
+        long prevOffset = firstOffset;
+        long prevDelta = 0;
+        int leading = 0;
+        int meaningful = 0;
+
+        for (int i = 1; i < count; i++) {
+            // Time offset
+            long dod;
+            if (readBits(1) == 0)
+                dod = 0;
+            else if (readBits(1) == 0)
+                dod = signed(readBits(7), 7);
+            else if (readBits(1) == 0)
+                dod = signed(readBits(9), 9);
+            else if (readBits(1) == 0)
+                dod = signed(readBits(12), 12);
+            else
+                dod = signed(readBits(32), 32);
+            long delta = prevDelta + dod;
+            if (delta < 0)
+                throw new BadRowException("Block error: samples out of order");
+            prevOffset += delta;
+            prevDelta = delta;
+            offsets[i] = prevOffset;
+
+            // Value
+            if (readBits(1) != 0) {
+                if (readBits(1) != 0) {
+                    leading = (int) readBits(5);
+                    meaningful = (int) readBits(6);
+                    if (meaningful == 0)
+                        meaningful = 64;
+                } else if (meaningful == 0)
+                    throw new BadRowException("Block error: value window used before it was defined");
+                prevValue ^= readBits(meaningful) << (64 - leading - meaningful);
+            }
+            values[i] = prevValue;
+        }
+
+        input = null;
+        size = count;
+    }
+
+    private long readBits(int count) throws BadRowException {
+        if (bitPosition + count > bitLimit)
+            throw new BadRowException("Block error: unexpected end of data");
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 1) | ((input[bitPosition >> 3] >>> (7 - (bitPosition & 7))) & 1);
+            bitPosition++;
+        }
+        return value;
+    }
+
+    /**
+     * Values are written in two's complement with the given number of bits, except for the positive edge of each
+     * range (e.g. 64 in 7 bits), which wraps to the negative edge and so must be recovered.
+     */
+    private static long signed(long value, int count) {
+        long half = 1L << (count - 1);
+        if (value > half)
+            return value - (1L << count);
+        return value;
+    }
+}
@@ -0,0 +1,146 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An append-only file of backdated samples for a shard. Appending backdates here is much cheaper than rewriting the
+ * data file for every batch. Reads merge the segment's samples with those of the data file (see SegmentMerge), and the
+ * segment is folded into the data file when the data file is next rewritten.
+ * <p>
+ * The segment is stored next to the data file as "[shardId].ooo", using the data file's record format. All samples
+ * are kept in memory sorted by offset, and a sample replaces any earlier one with the same offset, in the file or in
+ * the segment. Only samples that are not after the last sample in the data file are appended, so that merged reads
+ * are finished with the segment by the time they reach the end of the data file.
+ */
+class OutOfOrderSegment {
+    private static final Logger logger = LoggerFactory.getLogger(OutOfOrderSegment.class.getName());
+
+    private final File file;
+    private final List<PendingWrite> samples = new ArrayList<>();
+
+    private OutOfOrderSegment(File file) {
+        this.file = file;
+    }
+
+    static File getSegmentFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - 5) + ".ooo");
+    }
+
+    /**
+     * Loads the segment of the given data file. If the segment file is corrupt, it is cut at the last good record.
+     */
+    static OutOfOrderSegment load(File dataFile) {
+        OutOfOrderSegment segment = new OutOfOrderSegment(getSegmentFile(dataFile));
+        if (!segment.file.exists())
+            return segment;
+
+        ChecksumInputStream in = null;
+        long position = 0;
+        try {
+            ScanInfo scanInfo = new ScanInfo();
+            ByteArrayBuilder b = scanInfo.getData();
+            in = new ChecksumInputStream(segment.file);
+            while (true) {
+                DataShard._readSample(in, scanInfo);
+                if (scanInfo.isEof())
+                    break;
+                if (!in.checkSum())
+                    throw new IOException("Corruption detected in " + segment.file.getPath());
+                segment.add(scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
+                position = in.position();
+            }
+        } catch (IOException e) {
+            logger.warn("Error reading out of order segment " + segment.file + ". Cutting at " + position, e);
+            Utils.closeQuietly(in);
+            in = null;
+            segment.truncate(position);
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        return segment;
+    }
+
+    /**
+     * Appends the samples to the segment file. The list of backdates must be in chronological order.
+     */
+    void append(List<Backdate> backdates) throws IOException {
+        ChecksumOutputStream out = null;
+        try {
+            out = new ChecksumOutputStream(new FileOutputStream(file, true), file.length());
+            for (Backdate backdate : backdates) {
+                byte[] data = backdate.getData();
+                DataShard._writeSample(out, backdate.getOffset(), data, 0, data.length);
+                add(backdate.getOffset(), data, 0, data.length);
+            }
+        } finally {
+            Utils.closeQuietly(out);
+        }
+    }
+
+    boolean isEmpty() {
+        return samples.isEmpty();
+    }
+
+    /**
+     * @return the samples in offset order.
+     */
+    List<PendingWrite> getSamples() {
+        return samples;
+    }
+
+    PendingWrite getFirst() {
+        return samples.get(0);
+    }
+
+    PendingWrite getLast() {
+        return samples.get(samples.size() - 1);
+    }
+
+    /**
+     * @return the size of the segment file in bytes.
+     */
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * Removes the samples and the file, once the samples have been written to the data file.
+     */
+    void delete() throws IOException {
+        samples.clear();
+        Utils.deleteWithRetry(file);
+    }
+
+    private void add(long offset, byte[] data, int off, int len) {
+        PendingWrite sample = new PendingWrite(offset, data, off, len);
+        int index = Collections.binarySearch(samples, sample);
+        if (index < 0)
+            samples.add(-index - 1, sample);
+        else
+            samples.set(index, sample);
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            logger.warn("Failed to cut out of order segment " + file, e);
+        } finally {
+            Utils.closeQuietly(raf);
+        }
+    }
+}
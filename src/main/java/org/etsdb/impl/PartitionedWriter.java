@@ -0,0 +1,247 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.EtsdbException;
+import org.etsdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes samples in a fixed set of partition threads instead of in the calling threads. Series are assigned to
+ * partitions by the hash of their id, so that each series, and so each of its shards, is only written by one thread.
+ * Callers serialize their samples and add them to the partition's ring buffer without taking any locks, and the
+ * partition thread writes them in batches, taking the database and shard locks once per batch rather than once per
+ * sample. If a partition's buffer is full, callers wait for it to make room.
+ * <p>
+ * Samples are visible to queries once their partition has written them. Operations that must see all earlier writes
+ * of a series, such as deletes, wait for the series' partition first (see drain). The partition threads only stop
+ * once no caller is adding a sample, so that a sample that was accepted is always written, and close writes whatever
+ * is left in the buffers after the threads stopped.
+ */
+class PartitionedWriter<T> {
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedWriter.class.getName());
+
+    private static final int MAX_BATCH = 1024;
+    private static final long PARK_NANOS = 100000;
+
+    private final DatabaseImpl<T> db;
+    private final Serializer<T> serializer;
+    private final List<Partition> partitions = new ArrayList<>();
+    private final ThreadLocal<ByteArrayBuilder> buffers = new ThreadLocal<ByteArrayBuilder>() {
+        @Override
+        protected ByteArrayBuilder initialValue() {
+            return new ByteArrayBuilder();
+        }
+    };
+    private volatile boolean running;
+    /**
+     * The number of callers that are adding a sample.
+     */
+    private final AtomicInteger adding = new AtomicInteger();
+
+    PartitionedWriter(DatabaseImpl<T> db, Serializer<T> serializer, int partitionCount, int bufferSize) {
+        this.db = db;
+        this.serializer = serializer;
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new Partition(i, bufferSize));
+        }
+    }
+
+    void initiate() {
+        running = true;
+        for (Partition partition : partitions) {
+            partition.thread.start();
+        }
+    }
+
+    void write(String seriesId, long ts, T value) {
+        ByteArrayBuilder buffer = buffers.get();
+        buffer.clear();
+        serializer.toByteArray(buffer, value, ts);
+        add(seriesId, ts, buffer);
+    }
+
+    /**
+     * @param type see PrimitiveValue.
+     */
+    void writePrimitive(String seriesId, long ts, int type, long bits) {
+        ByteArrayBuilder buffer = buffers.get();
+        buffer.clear();
+        PrimitiveValue.serialize(db.primitiveSerializer, buffer, type, bits);
+        add(seriesId, ts, buffer);
+    }
+
+    private void add(String seriesId, long ts, ByteArrayBuilder buffer) {
+        int off = buffer.getReadOffset();
+        Sample sample = new Sample(seriesId, ts,
+                Arrays.copyOfRange(buffer.getBuffer(), off, off + buffer.getAvailable()));
+
+        Partition partition = getPartition(seriesId);
+        // Announced before checking running, so that the partition thread either sees this caller and keeps running
+        // until it is done, or this caller sees that the database was closed.
+        adding.incrementAndGet();
+        try {
+            if (!running) {
+                throw new EtsdbException("Database is closed");
+            }
+            while (!partition.ring.offer(sample)) {
+                if (!running) {
+                    throw new EtsdbException("Database is closed");
+                }
+                // The partition is behind, so give it time to catch up.
+                LockSupport.unpark(partition.thread);
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        } finally {
+            adding.decrementAndGet();
+        }
+        if (partition.waiting || !running) {
+            LockSupport.unpark(partition.thread);
+        }
+    }
+
+    /**
+     * Waits until the samples that were added for the given series so far have been written.
+     */
+    void drain(String seriesId) {
+        getPartition(seriesId).drain();
+    }
+
+    /**
+     * Waits until all of the samples that were added so far have been written.
+     */
+    void drain() {
+        for (Partition partition : partitions) {
+            partition.drain();
+        }
+    }
+
+    /**
+     * Writes the remaining samples and stops the partition threads.
+     */
+    void close() {
+        running = false;
+        for (Partition partition : partitions) {
+            LockSupport.unpark(partition.thread);
+            try {
+                partition.thread.join();
+            } catch (InterruptedException e) {
+                // no op
+            }
+        }
+
+        // Callers that were adding a sample kept the threads running, so the buffers should be empty, but anything
+        // left, for example by a thread that was interrupted, is written here.
+        for (Partition partition : partitions) {
+            if (!partition.thread.isAlive()) {
+                partition.writeRemaining();
+            }
+        }
+    }
+
+    private Partition getPartition(String seriesId) {
+        return partitions.get((seriesId.hashCode() & 0x7fffffff) % partitions.size());
+    }
+
+    static class Sample {
+        final String seriesId;
+        final long ts;
+        final byte[] data;
+
+        Sample(String seriesId, long ts, byte[] data) {
+            this.seriesId = seriesId;
+            this.ts = ts;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Orders the samples of a batch by series. The sort is stable, so the samples of a series stay in the order in
+     * which they were written.
+     */
+    private static final Comparator<Sample> BY_SERIES = new Comparator<Sample>() {
+        @Override
+        public int compare(Sample s1, Sample s2) {
+            return s1.seriesId.compareTo(s2.seriesId);
+        }
+    };
+
+    private class Partition implements Runnable {
+        final SampleRing<Sample> ring;
+        final Thread thread;
+        volatile boolean waiting;
+        /**
+         * The number of samples that have been written.
+         */
+        volatile long written;
+
+        Partition(int index, int bufferSize) {
+            ring = new SampleRing<>(bufferSize);
+            thread = new Thread(this, "ETSDB Writer " + index + " " + db.getBaseDir().getPath());
+            thread.setDaemon(true);
+        }
+
+        void drain() {
+            long added = ring.getAdded();
+            while (written < added) {
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+
+        @Override
+        public void run() {
+            Sample[] batch = new Sample[MAX_BATCH];
+            while (true) {
+                int count = ring.drain(batch, MAX_BATCH);
+                if (count == 0) {
+                    if (!running && adding.get() == 0 && written >= ring.getAdded()) {
+                        break;
+                    }
+
+                    // Wait for a producer, checking the ring again after announcing it to avoid a missed wake up.
+                    waiting = true;
+                    count = ring.drain(batch, MAX_BATCH);
+                    if (count == 0) {
+                        LockSupport.parkNanos(PARK_NANOS * 100);
+                    }
+                    waiting = false;
+                    if (count == 0) {
+                        continue;
+                    }
+                }
+
+                write(batch, count);
+            }
+        }
+
+        /**
+         * Writes what is left in the buffer in the calling thread. Only called after the partition thread stopped.
+         */
+        void writeRemaining() {
+            Sample[] batch = new Sample[MAX_BATCH];
+            int count;
+            while ((count = ring.drain(batch, MAX_BATCH)) > 0) {
+                write(batch, count);
+            }
+        }
+
+        private void write(Sample[] batch, int count) {
+            Arrays.sort(batch, 0, count, BY_SERIES);
+            try {
+                db.write(batch, count);
+            } catch (Exception e) {
+                logger.error("Error writing samples", e);
+            }
+            Arrays.fill(batch, 0, count, null);
+            written += count;
+        }
+    }
+}
@@ -1,14 +1,31 @@
 package org.etsdb.impl;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import org.etsdb.ByteArrayBuilder;
 
+import java.util.Arrays;
+
+/**
+ * The pending writes of a shard, in offset order. The data of the samples is copied once into a byte slab from the
+ * database's slab pool, and each write is kept as an offset, position and length in primitive arrays. Samples are read
+ * in place from the slab. The data of overwritten and removed samples stays in the slab until the list is cleared, when
+ * the slab is returned to the pool.
+ * <p>
+ * The memory that the list holds, i.e. its slab and arrays, is added to the queue's byte count, which is what the
+ * queue's memory budget is checked against.
+ */
 public class PendingWriteList {
+    private static final int INITIAL_CAPACITY = 16;
+
     private final WriteQueueInfo queueInfo;
-    private final List<PendingWrite> list = new ArrayList<>();
+    private long[] offsets;
+    private int[] positions;
+    private int[] lengths;
+    private int size;
+    private byte[] slab;
+    private int slabUsed;
     private long expiryTime;
     private int maxSize;
+    private long bytes;
 
     public PendingWriteList(WriteQueueInfo queueInfo) {
         this.queueInfo = queueInfo;
@@ -18,42 +35,180 @@ public class PendingWriteList {
         return expiryTime != 0 && expiryTime <= runtime;
     }
 
-    public void add(PendingWrite sample) {
-        if (list.isEmpty()) {
+    public void add(long offset, byte[] data, int off, int len) {
+        int index;
+        if (size == 0) {
             expiryTime = queueInfo.getExpiryTime();
             maxSize = queueInfo.getShardQueueSize();
-            list.add(sample);
+            if (offsets == null) {
+                offsets = new long[INITIAL_CAPACITY];
+                positions = new int[INITIAL_CAPACITY];
+                lengths = new int[INITIAL_CAPACITY];
+            }
+            index = -1;
+        } else if (offset > offsets[size - 1]) {
+            index = -size - 1;
         } else {
-            // There is a possibility that this write is backdated compared to the list or is an overwrite, so do a 
+            // There is a possibility that this write is backdated compared to the list or is an overwrite, so do a
             // search to find its insert position.
-            int index = Collections.binarySearch(list, sample);
-            if (index < 0) {
-                index = -index - 1;
-                if (index == list.size())
-                    list.add(sample);
-                else
-                    list.add(index, sample);
-            } else
-                list.set(index, sample);
+            index = Arrays.binarySearch(offsets, 0, size, offset);
         }
+
+        int position = store(data, off, len);
+        if (index < 0) {
+            index = -index - 1;
+            if (size == offsets.length) {
+                int capacity = size << 1;
+                offsets = Arrays.copyOf(offsets, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            if (index < size) {
+                System.arraycopy(offsets, index, offsets, index + 1, size - index);
+                System.arraycopy(positions, index, positions, index + 1, size - index);
+                System.arraycopy(lengths, index, lengths, index + 1, size - index);
+            }
+            size++;
+        }
+        offsets[index] = offset;
+        positions[index] = position;
+        lengths[index] = len;
+        updateBytes();
+    }
+
+    /**
+     * Copies the data into the slab, replacing the slab with a larger one from the pool if it is full.
+     *
+     * @return the position of the data in the slab.
+     */
+    private int store(byte[] data, int off, int len) {
+        if (slab == null) {
+            slab = queueInfo.slabs.take(len);
+        } else if (slabUsed + len > slab.length) {
+            byte[] larger = queueInfo.slabs.take(Math.max(slab.length << 1, slabUsed + len));
+            System.arraycopy(slab, 0, larger, 0, slabUsed);
+            queueInfo.slabs.give(slab);
+            slab = larger;
+        }
+
+        int position = slabUsed;
+        System.arraycopy(data, off, slab, position, len);
+        slabUsed += len;
+        return position;
     }
 
     public void clear() {
-        if (!list.isEmpty()) {
-            list.clear();
+        if (size > 0 || slab != null) {
+            size = 0;
             expiryTime = 0;
+            releaseSlab();
+            if (offsets.length > INITIAL_CAPACITY) {
+                // Don't hold on to the arrays of a burst.
+                offsets = null;
+                positions = null;
+                lengths = null;
+            }
+            updateBytes();
         }
     }
 
+    /**
+     * Clears the list and releases all of its memory, when its shard is closed.
+     */
+    public void close() {
+        clear();
+        offsets = null;
+        positions = null;
+        lengths = null;
+        updateBytes();
+    }
+
+    private void releaseSlab() {
+        if (slab != null) {
+            queueInfo.slabs.give(slab);
+            slab = null;
+            slabUsed = 0;
+        }
+    }
+
+    /**
+     * Removes the writes in the given range of offsets, inclusive.
+     *
+     * @return the number of writes that were removed.
+     */
+    public int remove(long fromOffset, long toOffset) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (offsets[i] < fromOffset || offsets[i] > toOffset) {
+                offsets[kept] = offsets[i];
+                positions[kept] = positions[i];
+                lengths[kept] = lengths[i];
+                kept++;
+            }
+        }
+        int removed = size - kept;
+        size = kept;
+        if (size == 0) {
+            expiryTime = 0;
+            releaseSlab();
+            updateBytes();
+        }
+        return removed;
+    }
+
+    /**
+     * Passes the change in the memory that is held by the list to the queue.
+     */
+    private void updateBytes() {
+        long now = (slab == null ? 0 : slab.length) + (offsets == null ? 0 : offsets.length * 16L);
+        if (now != bytes) {
+            queueInfo.addBytes(now - bytes);
+            bytes = now;
+        }
+    }
+
+    /**
+     * @return the memory in bytes that is held by the list.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
     public boolean exceeds() {
-        return list.size() > maxSize;
+        return size > maxSize;
     }
 
     public boolean isEmpty() {
-        return list.isEmpty();
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @return the slab that holds the data of the writes. See getPosition and getLength.
+     */
+    public byte[] getSlab() {
+        return slab;
+    }
+
+    public int getPosition(int index) {
+        return positions[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
     }
 
-    public List<PendingWrite> getList() {
-        return list;
+    /**
+     * Puts the data of the write at the given index into the builder.
+     */
+    public void get(int index, ByteArrayBuilder b) {
+        b.put(slab, positions[index], lengths[index]);
     }
 }
@@ -0,0 +1,30 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.PrimitiveSerializer;
+
+/**
+ * A primitive value that is written without being wrapped in the database's value type. The value is carried as the
+ * bits of a long, so that the write paths need a single method for all of the primitive types.
+ */
+class PrimitiveValue {
+    static final int DOUBLE = 0;
+    static final int LONG = 1;
+    static final int BOOLEAN = 2;
+
+    private PrimitiveValue() {
+    }
+
+    static void serialize(PrimitiveSerializer<?> serializer, ByteArrayBuilder b, int type, long bits) {
+        switch (type) {
+            case DOUBLE:
+                serializer.writeDouble(b, Double.longBitsToDouble(bits));
+                break;
+            case LONG:
+                serializer.writeLong(b, bits);
+                break;
+            default:
+                serializer.writeBoolean(b, bits != 0);
+        }
+    }
+}
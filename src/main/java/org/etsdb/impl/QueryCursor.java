@@ -0,0 +1,301 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.Cursor;
+import org.etsdb.EtsdbException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cursor that reads its samples a batch at a time with a limited query. After each sample, the remaining range is
+ * narrowed to start at its time stamp (or end after it, in reverse), so the next batch, or a cursor that is opened
+ * with the continuation token, starts with a seek through the shard's index rather than from a file position, which
+ * would not survive the shard's file being rewritten by a compaction, insert or delete. Since a series can have
+ * several samples with the same time stamp, the number of samples at that time stamp that were already returned is
+ * kept with the range, and skipped when the query is repeated.
+ * <p>
+ * If the cursor is given an executor, the next batch is read and decoded in the executor while the current one is
+ * iterated, which lets the cursors of a merged query read in parallel.
+ * <p>
+ * The token is "2:f:fromTs:toTs:skip:seriesId", or "2:r:..." in reverse, where the range is the remaining one, from
+ * inclusive to exclusive, and skip is the number of samples at its first time stamp (or last, in reverse) that were
+ * returned. Tokens of version 1, which have no skip, are still accepted.
+ */
+class QueryCursor<T> implements Cursor<T> {
+    static final int BATCH_SIZE = 1000;
+    private static final String TOKEN_VERSION = "2";
+
+    private final DatabaseImpl<T> db;
+    private final String seriesId;
+    private final boolean reverse;
+    private final int batchSize;
+    private final Executor executor;
+    // The remaining range of the samples that have not been returned, and the number of samples at its first time
+    // stamp (or last, in reverse) that were returned.
+    private long fromTs;
+    private long toTs;
+    private int skip;
+    // The same for the samples that have not been read.
+    private long readFromTs;
+    private long readToTs;
+    private int readSkip;
+
+    private Batch batch;
+    private Batch spare;
+    private FutureTask<Batch> pending;
+    private int index;
+    private boolean closed;
+    private long ts;
+    private T value;
+
+    QueryCursor(DatabaseImpl<T> db, String seriesId, long fromTs, long toTs, boolean reverse) {
+        this(db, seriesId, fromTs, toTs, reverse, BATCH_SIZE, null);
+    }
+
+    private QueryCursor(DatabaseImpl<T> db, String seriesId, long fromTs, long toTs, int skip, boolean reverse) {
+        this(db, seriesId, fromTs, toTs, reverse);
+        this.skip = readSkip = skip;
+    }
+
+    /**
+     * @param executor reads the batches ahead if not null.
+     */
+    QueryCursor(DatabaseImpl<T> db, String seriesId, long fromTs, long toTs, boolean reverse, int batchSize,
+            Executor executor) {
+        this.db = db;
+        this.seriesId = seriesId;
+        this.fromTs = readFromTs = fromTs;
+        this.toTs = readToTs = toTs;
+        this.reverse = reverse;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        batch = new Batch();
+        spare = new Batch();
+        // The empty first batch is not the last, so that the first call to next reads.
+        batch.last = false;
+    }
+
+    static <T> QueryCursor<T> resume(DatabaseImpl<T> db, String token) {
+        boolean version1 = token.startsWith("1:");
+        String[] parts = token.split(":", version1 ? 5 : 6);
+        if (parts.length != (version1 ? 5 : 6) || !(version1 || TOKEN_VERSION.equals(parts[0]))
+                || !(parts[1].equals("f") || parts[1].equals("r"))) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token);
+        }
+
+        try {
+            int skip = version1 ? 0 : Integer.parseInt(parts[4]);
+            if (skip < 0) {
+                throw new IllegalArgumentException("Invalid continuation token: " + token);
+            }
+            // The ranges of version 1 tokens exclude the samples that were returned, so nothing is skipped.
+            return new QueryCursor<>(db, parts[parts.length - 1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                    skip, parts[1].equals("r"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token, e);
+        }
+    }
+
+    /**
+     * Starts reading the first batch in the executor, if there is one.
+     */
+    void prefetch() {
+        if (executor != null && pending == null && !batch.last) {
+            readAhead();
+        }
+    }
+
+    @Override
+    public boolean next() {
+        while (!closed) {
+            if (index >= batch.size) {
+                if (batch.last) {
+                    return false;
+                }
+                nextBatch();
+                continue;
+            }
+
+            ts = batch.ts[index];
+            value = batch.value(index);
+            index++;
+            if (reverse) {
+                if (ts + 1 == toTs) {
+                    skip++;
+                } else {
+                    toTs = ts + 1;
+                    skip = 1;
+                }
+            } else {
+                if (ts == fromTs) {
+                    skip++;
+                } else {
+                    fromTs = ts;
+                    skip = 1;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void nextBatch() {
+        Batch read;
+        if (pending != null) {
+            try {
+                read = pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EtsdbException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new EtsdbException(e.getCause());
+            } finally {
+                pending = null;
+            }
+        } else {
+            read = read(spare);
+        }
+
+        spare = batch;
+        batch = read;
+        index = 0;
+        if (executor != null && !read.last) {
+            readAhead();
+        }
+    }
+
+    private void readAhead() {
+        final Batch target = spare;
+        pending = new FutureTask<>(new Callable<Batch>() {
+            @Override
+            public Batch call() {
+                return read(target);
+            }
+        });
+        executor.execute(pending);
+    }
+
+    private Batch read(Batch target) {
+        target.clear();
+        if (readFromTs < readToTs) {
+            // The samples that were read before at the time stamp where the range starts come first, and are skipped.
+            target.skipTs = reverse ? readToTs - 1 : readFromTs;
+            target.skip = readSkip;
+            db.queryRaw(seriesId, readFromTs, readToTs, batchSize + readSkip, reverse, target);
+        }
+        target.last = target.read < batchSize;
+        if (target.read > 0) {
+            if (reverse) {
+                if (target.endTs + 1 == readToTs) {
+                    readSkip += target.endCount;
+                } else {
+                    readToTs = target.endTs + 1;
+                    readSkip = target.endCount;
+                }
+            } else {
+                if (target.endTs == readFromTs) {
+                    readSkip += target.endCount;
+                } else {
+                    readFromTs = target.endTs;
+                    readSkip = target.endCount;
+                }
+            }
+        }
+        return target;
+    }
+
+    @Override
+    public String getSeriesId() {
+        return seriesId;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return ts;
+    }
+
+    @Override
+    public T getValue() {
+        return value;
+    }
+
+    @Override
+    public String getContinuationToken() {
+        return TOKEN_VERSION + (reverse ? ":r:" : ":f:") + fromTs + ":" + toTs + ":" + skip + ":" + seriesId;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        batch.clear();
+        value = null;
+    }
+
+    /**
+     * A batch of samples, which are read as views and detached (see Serializer.view and detach).
+     */
+    private class Batch implements RawQueryCallback {
+        final long[] ts = new long[batchSize];
+        final Object[] values = new Object[batchSize];
+        int size;
+        // The number of samples that were read, including those that could not be deserialized.
+        int read;
+        // The time stamp of the last sample that was read, and the number of samples that were read at it.
+        long endTs = Long.MIN_VALUE;
+        int endCount;
+        boolean last = true;
+        // The number of samples at the given time stamp that were read by an earlier batch.
+        long skipTs;
+        int skip;
+        private T view;
+
+        @Override
+        public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+            if (skip > 0 && ts == skipTs) {
+                skip--;
+                return;
+            }
+            skip = 0;
+            read++;
+            if (ts == endTs) {
+                endCount++;
+            } else {
+                endTs = ts;
+                endCount = 1;
+            }
+            T t = db.serializer.view(b, ts, view);
+            if (t != null) {
+                view = t;
+                this.ts[size] = ts;
+                values[size] = db.serializer.detach(t);
+                size++;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T value(int index) {
+            return (T) values[index];
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                values[i] = null;
+            }
+            size = 0;
+            read = 0;
+            endTs = Long.MIN_VALUE;
+            endCount = 0;
+            skip = 0;
+        }
+    }
+}
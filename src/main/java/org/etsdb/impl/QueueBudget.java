@@ -0,0 +1,80 @@
+package org.etsdb.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory that is held by the write queues of all of the databases in the process, which share the memory budget.
+ * Databases that use the write queue register while they are open, so that any of them can have the others flush their
+ * queues early when the budget is exceeded.
+ */
+class QueueBudget {
+    private static final AtomicLong bytes = new AtomicLong();
+    private static final Set<DatabaseImpl<?>> databases =
+            Collections.newSetFromMap(new ConcurrentHashMap<DatabaseImpl<?>, Boolean>());
+    private static final Object monitor = new Object();
+    private static volatile int waiters;
+
+    static void register(DatabaseImpl<?> db) {
+        databases.add(db);
+    }
+
+    static void unregister(DatabaseImpl<?> db) {
+        databases.remove(db);
+    }
+
+    static long getBytes() {
+        return bytes.get();
+    }
+
+    static void add(long delta) {
+        bytes.addAndGet(delta);
+        if (delta < 0 && waiters > 0) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return true if the given budget is exceeded. A budget of 0 is never exceeded.
+     */
+    static boolean exceeds(long budget) {
+        return budget > 0 && bytes.get() > budget;
+    }
+
+    /**
+     * Starts the flush process of all of the registered databases.
+     */
+    static void requestRelief() {
+        for (DatabaseImpl<?> db : databases) {
+            db.flushSoon();
+        }
+    }
+
+    /**
+     * Waits until the given queue is within its budget, or the timeout has passed.
+     *
+     * @return true if the queue is within its budget.
+     */
+    static boolean await(WriteQueueInfo queueInfo, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (monitor) {
+            waiters++;
+            try {
+                while (queueInfo.overBudget()) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                    monitor.wait(wait);
+                }
+                return true;
+            } finally {
+                waiters--;
+            }
+        }
+    }
+}
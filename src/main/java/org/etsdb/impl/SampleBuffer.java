@@ -0,0 +1,58 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+
+/**
+ * A reusable list of copies of samples, used to return samples in reverse order without reading them twice.
+ */
+class SampleBuffer {
+    private long[] offsets = new long[64];
+    private int[] ends = new int[64];
+    private byte[] data = new byte[1024];
+    private int size;
+
+    void add(long offset, ByteArrayBuilder b) {
+        if (size == offsets.length) {
+            long[] o = new long[size << 1];
+            System.arraycopy(offsets, 0, o, 0, size);
+            offsets = o;
+            int[] e = new int[size << 1];
+            System.arraycopy(ends, 0, e, 0, size);
+            ends = e;
+        }
+
+        int start = size == 0 ? 0 : ends[size - 1];
+        int length = b.getAvailable();
+        if (start + length > data.length) {
+            byte[] d = new byte[Math.max(data.length << 1, start + length)];
+            System.arraycopy(data, 0, d, 0, start);
+            data = d;
+        }
+        System.arraycopy(b.getBuffer(), b.getReadOffset(), data, start, length);
+
+        offsets[size] = offset;
+        ends[size] = start + length;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Copies the data of the sample at the given index into the given builder.
+     */
+    void get(int index, ByteArrayBuilder b) {
+        int start = index == 0 ? 0 : ends[index - 1];
+        b.clear();
+        b.put(data, start, ends[index] - start);
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,84 @@
+package org.etsdb.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded ring buffer that any number of threads can add to without locking, and that one thread takes from. Each
+ * slot has a sequence number that tells whether it is free for the producer of a given position, or filled for the
+ * consumer. Producers claim positions by incrementing the tail, and the consumer frees the slots that it takes.
+ */
+class SampleRing<E> {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Only used by the consumer thread.
+     */
+    private long head;
+
+    /**
+     * @param capacity rounded up to a power of 2.
+     */
+    SampleRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * @return false if the ring is full.
+     */
+    boolean offer(E item) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items[index] = item;
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Takes up to max items into the given array. Only called by the consumer thread.
+     *
+     * @return the number of items taken.
+     */
+    @SuppressWarnings("unchecked")
+    int drain(E[] to, int max) {
+        int count = 0;
+        while (count < max) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            to[count++] = (E) items[index];
+            items[index] = null;
+            sequences.lazySet(index, head + items.length);
+            head++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of items that have been added to the ring.
+     */
+    long getAdded() {
+        return tail.get();
+    }
+}
@@ -0,0 +1,60 @@
+package org.etsdb.impl;
+
+import org.etsdb.NumericSerializer;
+
+import java.io.IOException;
+
+/**
+ * Writes samples to a shard data file, keeping the shard index and summary up to date. If a serializer is given, consecutive
+ * samples with the same numeric type are collected into compressed numeric blocks. Otherwise every sample is written
+ * as its own record.
+ */
+class SampleWriter {
+    private final ChecksumOutputStream out;
+    private final ShardIndex index;
+    private final ShardSummary summary;
+    private final NumericSerializer<?> serializer;
+    private final NumericBlock block;
+
+    /**
+     * @param serializer the serializer to use to create numeric blocks, or null to write only sample records.
+     */
+    SampleWriter(ChecksumOutputStream out, ShardIndex index, ShardSummary summary, NumericSerializer<?> serializer) {
+        this.out = out;
+        this.index = index;
+        this.summary = summary;
+        this.serializer = serializer;
+        block = serializer == null ? null : new NumericBlock();
+    }
+
+    /**
+     * Samples must be written in time order.
+     */
+    void write(long offset, byte[] data, int off, int len) throws IOException {
+        summary.add(offset, data, off, len);
+        if (block != null) {
+            int type = serializer.getNumericType(data, off, len);
+            if (type != -1) {
+                if (block.isFull() || (!block.isEmpty() && block.getType() != type))
+                    flush();
+                block.add(type, offset, serializer.toDouble(data, off, len));
+                return;
+            }
+        }
+
+        flush();
+        index.add(offset, out.position());
+        DataShard._writeSample(out, offset, data, off, len);
+    }
+
+    /**
+     * Writes out the current block, if any. This must be called after the last sample is written.
+     */
+    void flush() throws IOException {
+        if (block != null && !block.isEmpty()) {
+            index.add(block.getOffset(0), out.position());
+            block.write(out);
+            block.clear();
+        }
+    }
+}
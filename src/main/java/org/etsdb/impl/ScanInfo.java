@@ -1,8 +1,8 @@
 package org.etsdb.impl;
 
 import org.etsdb.ByteArrayBuilder;
-
-import java.util.List;
+import org.etsdb.EtsdbException;
+import org.etsdb.NumericSerializer;
 
 /**
  * Reusable object for efficiently handling queries.
@@ -25,21 +25,54 @@ class ScanInfo {
     /**
      * The shard's pending write cache.
      */
-    private List<PendingWrite> cache;
+    private PendingWriteList cache;
     /**
      * If true, the end of file was reached, and scan should be ended. The offset and data fields should not be used.
      */
     private boolean eof;
+    /**
+     * Used to recreate the data of samples in numeric blocks. If null, block samples have no data, which is fine for
+     * scans that only need the offsets.
+     */
+    private NumericSerializer<?> serializer;
+    /**
+     * True if the scan needs the data of the samples, and so can not read numeric blocks without a serializer.
+     */
+    private boolean dataRequired;
+    /**
+     * The numeric block that is currently being read, if any.
+     */
+    private NumericBlock block;
+    private int blockIndex;
+    /**
+     * True if the current record came from a numeric block, in which case the block's checksum has already been
+     * verified.
+     */
+    private boolean blockSample;
 
     public ScanInfo() {
         // no op
     }
 
-    public ScanInfo(List<PendingWrite> cache) {
+    public ScanInfo(PendingWriteList cache) {
         this.cache = cache;
         cacheIndex = -1;
     }
 
+    /**
+     * @param serializer the database's numeric serializer, or null if its serializer is not numeric.
+     */
+    public ScanInfo(NumericSerializer<?> serializer) {
+        this.serializer = serializer;
+        dataRequired = true;
+    }
+
+    public ScanInfo(NumericSerializer<?> serializer, PendingWriteList cache) {
+        this(cache);
+        this.serializer = serializer;
+        dataRequired = true;
+    }
+
     long getOffset() {
         return offset;
     }
@@ -73,13 +106,66 @@ class ScanInfo {
 
     void incrementCache() {
         if (cache != null && ++cacheIndex < cache.size()) {
-            PendingWrite p = cache.get(cacheIndex);
-            offset = p.getOffset();
+            offset = cache.getOffset(cacheIndex);
             data.clear();
-            data.put(p.getData());
+            cache.get(cacheIndex, data);
         }
     }
 
+    boolean isBlockSample() {
+        return blockSample;
+    }
+
+    /**
+     * @return true if the current numeric block has samples after the current one.
+     */
+    boolean hasMoreBlockSamples() {
+        return blockSample && blockIndex + 1 < block.size();
+    }
+
+    /**
+     * Decodes the numeric block that was read into the data, and makes its first sample the current record.
+     */
+    void readBlock(long firstOffset) throws BadRowException {
+        if (serializer == null && dataRequired)
+            throw new EtsdbException("Numeric blocks can only be read with a NumericSerializer");
+        if (block == null)
+            block = new NumericBlock();
+        block.read(firstOffset, data);
+        blockIndex = -1;
+        nextBlockSample();
+    }
+
+    /**
+     * Makes the next sample of the current numeric block the current record.
+     *
+     * @return false if there are no more samples in the block, in which case the next record must be read from the
+     * file.
+     */
+    boolean nextBlockSample() {
+        if (block == null || blockIndex + 1 >= block.size()) {
+            blockSample = false;
+            return false;
+        }
+
+        blockIndex++;
+        offset = block.getOffset(blockIndex);
+        data.clear();
+        if (serializer != null)
+            serializer.fromDouble(data, block.getType(), block.getValue(blockIndex));
+        blockSample = true;
+        return true;
+    }
+
+    /**
+     * Discards the remaining samples of the current numeric block.
+     */
+    void skipBlock() {
+        if (block != null)
+            block.clear();
+        blockSample = false;
+    }
+
     void reset() {
         reset(null);
     }
@@ -87,6 +173,7 @@ class ScanInfo {
     void reset(DataShard shard) {
         this.eof = false;
         cacheIndex = -1;
+        skipBlock();
         if (shard != null)
             cache = shard.getCache();
     }
@@ -0,0 +1,82 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Merges the samples of an out-of-order segment into a forward scan of a data file. When a segment sample comes
+ * before the file sample that was just read, the file sample is held back and the segment sample is returned in its
+ * place. A segment sample with the same offset as a file sample replaces it.
+ */
+class SegmentMerge {
+    private final List<PendingWrite> samples;
+    private int index;
+
+    private boolean held;
+    private long heldOffset;
+    private final ByteArrayBuilder heldData = new ByteArrayBuilder();
+
+    /**
+     * @param fromOffset segment samples before this offset are skipped.
+     */
+    SegmentMerge(List<PendingWrite> samples, long fromOffset) {
+        this.samples = samples;
+        index = Collections.binarySearch(samples, new PendingWrite(fromOffset, null));
+        if (index < 0)
+            index = -index - 1;
+    }
+
+    /**
+     * Called before reading from the file. If a file sample is being held back, makes the next sample, whether from
+     * the segment or the held one, the current record of the scan.
+     *
+     * @return true if the current record was set, in which case nothing should be read from the file.
+     */
+    boolean next(ScanInfo scanInfo) {
+        if (!held)
+            return false;
+
+        if (index < samples.size() && samples.get(index).getOffset() <= heldOffset) {
+            if (samples.get(index).getOffset() == heldOffset)
+                held = false;
+            take(scanInfo);
+        } else {
+            held = false;
+            scanInfo.setOffset(heldOffset);
+            scanInfo.getData().clear();
+            scanInfo.getData().put(heldData.getBuffer(), heldData.getReadOffset(), heldData.getAvailable());
+        }
+        return true;
+    }
+
+    /**
+     * Called after a sample was read from the file. If the next segment sample is not after it, the file sample is
+     * held back, or dropped if it has the same offset, and the segment sample becomes the current record.
+     */
+    void merge(ScanInfo scanInfo) {
+        if (scanInfo.isEof() || index >= samples.size())
+            return;
+
+        long offset = samples.get(index).getOffset();
+        if (offset > scanInfo.getOffset())
+            return;
+
+        if (offset < scanInfo.getOffset()) {
+            ByteArrayBuilder b = scanInfo.getData();
+            held = true;
+            heldOffset = scanInfo.getOffset();
+            heldData.clear();
+            heldData.put(b.getBuffer(), b.getReadOffset(), b.getAvailable());
+        }
+        take(scanInfo);
+    }
+
+    private void take(ScanInfo scanInfo) {
+        PendingWrite p = samples.get(index++);
+        scanInfo.setOffset(p.getOffset());
+        scanInfo.getData().clear();
+        scanInfo.getData().put(p.getData());
+    }
+}
@@ -10,9 +10,10 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 class Series<T> {
     private static final Logger logger = LoggerFactory.getLogger(Series.class.getName());
@@ -23,9 +24,12 @@ class Series<T> {
     private final Serializer<T> serializer;
 
     private final ByteArrayBuilder buffer = new ByteArrayBuilder();
-    private final Map<Long, DataShard> shardLookup = new HashMap<>();
-    private long minShard = Long.MAX_VALUE;
-    private long maxShard = 0;
+    private final ConcurrentLongMap<DataShard> shardLookup = new ConcurrentLongMap<>();
+    /**
+     * The ids of the shards that exist in the series, either as files or as open shards. Guarded by its own monitor,
+     * which is also held while shards are dropped or closed.
+     */
+    private final NavigableSet<Long> shardIds = new TreeSet<>();
 
     Series(DatabaseImpl<T> db, File baseDir, String id, Serializer<T> serializer) {
         this.db = db;
@@ -44,10 +48,21 @@ class Series<T> {
         });
         if (shards != null) {
             for (String shard : shards) {
+                if (shard.endsWith(".meta")) {
+                    // The latest time of a shard used to be kept in a memory mapped meta file. It is now taken from
+                    // the shard summary, so the meta files of earlier versions are deleted once, when the series is
+                    // loaded.
+                    try {
+                        Utils.deleteWithRetry(new File(seriesDir, shard));
+                    } catch (IOException e) {
+                        logger.warn("Error while deleting shard meta " + shard + " in series " + id, e);
+                    }
+                    continue;
+                }
                 try {
                     // Remove the .data extension
                     shard = shard.substring(0, shard.length() - 5);
-                    updateMinMax(Long.parseLong(shard));
+                    shardIds.add(Long.parseLong(shard));
                 } catch (NumberFormatException e) {
                     // no op
                 }
@@ -67,11 +82,94 @@ class Series<T> {
         }
     }
 
+    /**
+     * @param type see PrimitiveValue.
+     */
+    void writePrimitive(long ts, int type, long bits) throws IOException {
+        synchronized (buffer) {
+            buffer.clear();
+            PrimitiveValue.serialize(db.primitiveSerializer, buffer, type, bits);
+            write(ts, buffer.getBuffer(), buffer.getReadOffset(), buffer.getAvailable());
+        }
+    }
+
+    /**
+     * Serializes the samples into one buffer, and writes each run of samples in the same shard with one shard write.
+     */
+    void write(long[] ts, List<T> values, int count) throws IOException {
+        synchronized (buffer) {
+            // The buffer is limited to the maximum length of a sample, so each sample is copied on to the batch array.
+            byte[] data = new byte[count * 16];
+            int[] offsets = new int[count + 1];
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                serializer.toByteArray(buffer, values.get(i), ts[i]);
+                int len = buffer.getAvailable();
+                if (offsets[i] + len > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length << 1, offsets[i] + len));
+                }
+                System.arraycopy(buffer.getBuffer(), buffer.getReadOffset(), data, offsets[i], len);
+                offsets[i + 1] = offsets[i] + len;
+            }
+
+            int from = 0;
+            while (from < count) {
+                long shardId = Utils.getShardId(ts[from]);
+                int to = from + 1;
+                while (to < count && Utils.getShardId(ts[to]) == shardId) {
+                    to++;
+                }
+
+                DataShard shard = getShardById(shardId, true);
+                try {
+                    shard.write(ts, data, offsets, from, to);
+                } finally {
+                    shard.unlockWrite();
+                }
+                from = to;
+            }
+        }
+    }
+
     private void write(long ts, byte[] data, int off, int len) throws IOException {
         DataShard shard = getShard(ts, true);
         try {
             shard.write(ts, data, off, len);
-            checkOpenFiles(shard);
+        } finally {
+            shard.unlockWrite();
+        }
+    }
+
+    /**
+     * Writes the given range of samples, which all belong to this series, keeping each shard locked while consecutive
+     * samples are written to it.
+     */
+    void write(PartitionedWriter.Sample[] samples, int from, int to) throws IOException {
+        DataShard shard = null;
+        try {
+            for (int i = from; i < to; i++) {
+                PartitionedWriter.Sample sample = samples[i];
+                long shardId = Utils.getShardId(sample.ts);
+                if (shard != null && shard.getShardId() != shardId) {
+                    shard.unlockWrite();
+                    shard = null;
+                }
+                if (shard == null) {
+                    shard = getShardById(shardId, true);
+                }
+                shard.write(sample.ts, sample.data, 0, sample.data.length);
+            }
+        } finally {
+            if (shard != null) {
+                shard.unlockWrite();
+            }
+        }
+    }
+
+    boolean replay(long ts, byte[] data) throws IOException {
+        DataShard shard = getShard(ts, true);
+        try {
+            return shard.replay(ts, data);
         } finally {
             shard.unlockWrite();
         }
@@ -87,22 +185,8 @@ class Series<T> {
     }
 
     void query(long fromTs, long toTs, int limit, boolean reverse, RawQueryCallback cb) throws IOException {
-        // Determine the shard range to query
-        long fromShard = Utils.getShardId(fromTs);
-        long toShard = Utils.getShardId(toTs);
-        synchronized (shardLookup) {
-            if (fromShard < minShard)
-                fromShard = minShard;
-            if (toShard > maxShard)
-                toShard = maxShard;
-        }
-
-        // Iterate through the shards.
-        for (long sid = fromShard; sid <= toShard; sid++) {
-            long shardId = sid;
-            if (reverse)
-                shardId = toShard - sid + fromShard;
-
+        // Iterate through the shards in the range.
+        for (long shardId : getShardIds(Utils.getShardId(fromTs), Utils.getShardId(toTs), reverse)) {
             // Get a handle on the current shard.
             DataShard shard = getShardById(shardId, false);
             try {
@@ -127,23 +211,149 @@ class Series<T> {
         }
     }
 
+    /**
+     * Returns the samples in the given range, along with the last sample before it and the first sample at or after
+     * its end, which may be in other shards. The sample before is found by the scan of the range's first shard if that
+     * shard has one, and otherwise from the summaries of the earlier shards. The sample after is found by scanning on
+     * past the end of the range.
+     */
+    void queryWithBounds(long fromTs, final long toTs, final RawQueryCallback cb) throws IOException {
+        final boolean[] after = new boolean[1];
+        RawQueryCallback tracker = new RawQueryCallback() {
+            @Override
+            public void sample(String seriesId, long ts, ByteArrayBuilder b) {
+                if (ts >= toTs) {
+                    after[0] = true;
+                }
+                cb.sample(seriesId, ts, b);
+            }
+        };
+
+        long fromShard = Utils.getShardId(fromTs);
+        boolean before = true;
+        for (long shardId : getShardIds(fromShard, Long.MAX_VALUE, false)) {
+            if (before) {
+                if (shardId == fromShard && queryWithBounds(shardId, fromTs, toTs, true, tracker) != -1) {
+                    before = false;
+                    if (after[0])
+                        break;
+                    continue;
+                }
+                // The sample before the range is in an earlier shard.
+                queryLastBefore(fromShard, tracker);
+                before = false;
+            }
+
+            queryWithBounds(shardId, fromTs, toTs, false, tracker);
+            if (after[0])
+                break;
+        }
+
+        if (before)
+            // There are no shards from the start of the range.
+            queryLastBefore(fromShard, tracker);
+    }
+
+    private int queryWithBounds(long shardId, long fromTs, long toTs, boolean before, RawQueryCallback cb)
+            throws IOException {
+        DataShard shard = getShardById(shardId, false);
+        try {
+            long fromOffset = Utils.getOffsetInShard(shardId, fromTs);
+            long toOffset = Utils.getOffsetInShard(shardId, toTs);
+            return shard.queryWithBounds(fromOffset, toOffset, before, cb);
+        } finally {
+            shard.unlockRead();
+        }
+    }
+
+    /**
+     * Returns the last sample of the shards before the given one, if there is one.
+     */
+    private void queryLastBefore(long shardId, RawQueryCallback cb) throws IOException {
+        for (long id : getShardIds(Long.MIN_VALUE, shardId - 1, true)) {
+            DataShard shard = getShardById(id, false);
+            try {
+                if (shard.queryLast(cb))
+                    break;
+            } finally {
+                shard.unlockRead();
+            }
+        }
+    }
+
+    /**
+     * Counts the samples in the given range. Shards that are completely in the range are counted from their summaries.
+     */
+    long count(long fromTs, long toTs) throws IOException {
+        long count = 0;
+        for (long shardId : getShardIds(Utils.getShardId(fromTs), Utils.getShardId(toTs), false)) {
+            DataShard shard = getShardById(shardId, false);
+            try {
+                long fromOffset = Utils.getOffsetInShard(shardId, fromTs);
+                long toOffset = Utils.getOffsetInShard(shardId, toTs);
+                count += shard.count(fromOffset, toOffset);
+            } finally {
+                shard.unlockRead();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the samples in the given range to the aggregator, using the shards' rollups of the given interval where
+     * they cover it.
+     */
+    void aggregate(long fromTs, long toTs, long rollupInterval, Aggregator aggregator) throws IOException {
+        for (long shardId : getShardIds(Utils.getShardId(fromTs), Utils.getShardId(toTs), false)) {
+            DataShard shard = getShardById(shardId, false);
+            try {
+                shard.aggregate(fromTs, toTs, rollupInterval, aggregator);
+            } finally {
+                shard.unlockRead();
+            }
+        }
+    }
+
+    /**
+     * Returns the first (or last, if reverse is true) sample in the series to the callback, if there is one.
+     */
+    void queryFirst(boolean reverse, RawQueryCallback cb) throws IOException {
+        for (long shardId : getShardIds(Long.MIN_VALUE, Long.MAX_VALUE, reverse)) {
+            DataShard shard = getShardById(shardId, false);
+            try {
+                boolean found;
+                if (reverse)
+                    found = shard.queryLast(cb);
+                else
+                    found = shard.queryFirst(cb);
+                if (found)
+                    break;
+            } finally {
+                shard.unlockRead();
+            }
+        }
+    }
+
     TimeRange getTimeRange() throws IOException {
         long minShard, maxShard;
 
-        synchronized (shardLookup) {
-            minShard = this.minShard;
-            maxShard = this.maxShard;
+        synchronized (shardIds) {
+            if (shardIds.isEmpty())
+                return null;
+            minShard = shardIds.first();
+            maxShard = shardIds.last();
         }
 
-        if (maxShard == 0)
-            return null;
-
         TimeRange range = new TimeRange();
+        // The end of the range is taken from the last value cache if the series is in it.
+        Long lastTs = db.lastValues == null ? null : db.lastValues.getTimestamp(id);
 
         DataShard min = getShardById(minShard, false);
         try {
             range.setFrom(min.getMinTs());
-            if (minShard == maxShard)
+            if (lastTs != null)
+                range.setTo(lastTs);
+            else if (minShard == maxShard)
                 range.setTo(min.getMaxTs());
             else {
                 DataShard max = getShardById(maxShard, false);
@@ -161,25 +371,24 @@ class Series<T> {
     }
 
     long delete(long fromTs, long toTs) throws IOException {
-        long fromShard = Utils.getShardId(fromTs);
-        long toShard = Utils.getShardId(toTs);
         long deleteCount = 0;
 
-        synchronized (shardLookup) {
-            if (fromShard < minShard)
-                fromShard = minShard;
-            if (toShard > maxShard)
-                toShard = maxShard;
-
-            for (long shardId = fromShard; shardId <= toShard; ++shardId) {
+        synchronized (shardIds) {
+            for (long shardId : getShardIds(Utils.getShardId(fromTs), Utils.getShardId(toTs), false)) {
+                boolean deleted;
                 DataShard shard = getShardById(shardId, true);
                 try {
                     long fromOffset = Utils.getOffsetInShard(shardId, fromTs);
                     long toOffset = Utils.getOffsetInShard(shardId, toTs);
                     deleteCount += shard.deleteSamples(fromOffset, toOffset);
+                    deleted = shard.isDeleted();
                 } finally {
                     shard.unlockWrite();
                 }
+
+                // Shards with nothing left are dropped rather than rewritten.
+                if (deleted)
+                    dropShard(shardId);
             }
         }
         return deleteCount;
@@ -188,57 +397,22 @@ class Series<T> {
     void purge(long toTs) {
         long toShard = Utils.getShardId(toTs);
 
-        if (toShard <= minShard)
-            return;
-        if (toShard > maxShard)
-            toShard = maxShard + 1;
-
-        synchronized (shardLookup) {
-            for (long shardId = minShard; shardId < toShard; shardId++) {
-                DataShard shard = shardLookup.get(shardId);
-                if (shard != null) {
-                    try {
-                        shard.lockWrite();
-                        shard.close();
-                        shardLookup.remove(shardId);
-                        db.openShards.decrementAndGet();
-
-                        try {
-                            Utils.deleteWithRetry(new File(seriesDir, shardId + ".meta"));
-                        } catch (IOException e) {
-                            logger.warn("Error while deleting shard meta " + shardId + " in series " + id, e);
-                        }
-
-                        try {
-                            Utils.deleteWithRetry(new File(seriesDir, shardId + ".data"));
-                        } catch (IOException e) {
-                            logger.warn("Error while deleting shard data " + shardId + " in series " + id, e);
-                        }
-                    } finally {
-                        shard.unlockWrite();
-                    }
-                }
+        synchronized (shardIds) {
+            // Shards that are not open still need their files deleted.
+            List<Long> purged = new ArrayList<>(shardIds.headSet(toShard, false));
+            for (long shardId : purged) {
+                dropShard(shardId);
             }
-
-            if (toShard > maxShard) {
-                minShard = Long.MAX_VALUE;
-                maxShard = 0;
-            } else
-                minShard = toShard;
         }
     }
 
-    int flush(long runtime, boolean force) throws IOException {
-        int closures = 0;
-
+    void flush(long runtime, boolean force) throws IOException {
         for (DataShard shard : getShards()) {
             try {
                 shard.lockWrite();
                 shard.flush(runtime, force);
-                checkOpenFiles(shard);
-                closures = shard.resetMetaClosures();
                 if (shard.isClosed()) {
-                    synchronized (shardLookup) {
+                    synchronized (shardIds) {
                         shardLookup.remove(shard.getShardId());
                         db.openShards.decrementAndGet();
                     }
@@ -249,21 +423,10 @@ class Series<T> {
         }
 
         synchronized (buffer) {
-            synchronized (shardLookup) {
-                if (shardLookup.isEmpty()) {
-                    buffer.resetCapacity();
-                }
+            if (shardLookup.isEmpty()) {
+                buffer.resetCapacity();
             }
         }
-
-        return closures;
-    }
-
-    private void checkOpenFiles(DataShard shard) {
-        if (db.tooManyFiles()) {
-            shard.closeFiles();
-            db.forcedClose.incrementAndGet();
-        }
     }
 
     void close() {
@@ -271,7 +434,7 @@ class Series<T> {
             try {
                 shard.lockWrite();
                 shard.close();
-                synchronized (shardLookup) {
+                synchronized (shardIds) {
                     shardLookup.remove(shard.getShardId());
                     db.openShards.decrementAndGet();
                 }
@@ -281,12 +444,19 @@ class Series<T> {
         }
     }
 
-    private List<DataShard> getShards() {
-        List<DataShard> shards;
-        synchronized (shardLookup) {
-            shards = new ArrayList<>(shardLookup.values());
+    /**
+     * Adds the open shards that have queued writes to the given list.
+     */
+    void getQueuedShards(List<DataShard> result) {
+        for (DataShard shard : getShards()) {
+            if (shard.getQueuedBytes() > 0) {
+                result.add(shard);
+            }
         }
-        return shards;
+    }
+
+    private List<DataShard> getShards() {
+        return shardLookup.values();
     }
 
     //
@@ -294,6 +464,60 @@ class Series<T> {
     // Private
     //
 
+    /**
+     * Closes the shard if it is open, and deletes its files. Must be called while synchronized on the shard ids.
+     */
+    private void dropShard(long shardId) {
+        DataShard shard = shardLookup.get(shardId);
+        if (shard != null) {
+            try {
+                shard.lockWrite();
+                shard.close();
+                shardLookup.remove(shardId);
+                db.openShards.decrementAndGet();
+            } finally {
+                shard.unlockWrite();
+            }
+        }
+        shardIds.remove(shardId);
+
+        try {
+            Utils.deleteWithRetry(new File(seriesDir, shardId + ".data"));
+        } catch (IOException e) {
+            logger.warn("Error while deleting shard data " + shardId + " in series " + id, e);
+        }
+
+        try {
+            Utils.deleteWithRetry(new File(seriesDir, shardId + ".idx"));
+        } catch (IOException e) {
+            logger.warn("Error while deleting shard index " + shardId + " in series " + id, e);
+        }
+
+        try {
+            Utils.deleteWithRetry(new File(seriesDir, shardId + ".sum"));
+        } catch (IOException e) {
+            logger.warn("Error while deleting shard summary " + shardId + " in series " + id, e);
+        }
+
+        try {
+            Utils.deleteWithRetry(new File(seriesDir, shardId + ".ooo"));
+        } catch (IOException e) {
+            logger.warn("Error while deleting shard out of order segment " + shardId + " in series " + id, e);
+        }
+
+        try {
+            Utils.deleteWithRetry(new File(seriesDir, shardId + ".del"));
+        } catch (IOException e) {
+            logger.warn("Error while deleting shard tombstones " + shardId + " in series " + id, e);
+        }
+
+        try {
+            ShardRollups.deleteFiles(new File(seriesDir, shardId + ".data"));
+        } catch (IOException e) {
+            logger.warn("Error while deleting shard rollups " + shardId + " in series " + id, e);
+        }
+    }
+
     private DataShard getShard(long ts, boolean writeLock) throws IOException {
         return getShardById(Utils.getShardId(ts), writeLock);
     }
@@ -333,23 +557,35 @@ class Series<T> {
     private DataShard _getShardById(long shardId) throws IOException {
         DataShard shard = shardLookup.get(shardId);
         if (shard == null) {
-            synchronized (shardLookup) {
-                shard = shardLookup.get(shardId);
-                if (shard == null) {
-                    shard = new DataShard(db, seriesDir, id, shardId);
-                    shardLookup.put(shardId, shard);
-                    db.openShards.incrementAndGet();
-                    updateMinMax(shardId);
+            // The shard is created without holding the monitor, since creating it opens no files and the first of
+            // concurrent creations is kept. A shard that loses the race has nothing to release.
+            DataShard created = new DataShard(db, seriesDir, id, shardId);
+            shard = shardLookup.putIfAbsent(shardId, created);
+            if (shard == null) {
+                shard = created;
+                db.openShards.incrementAndGet();
+                synchronized (shardIds) {
+                    shardIds.add(shardId);
                 }
             }
         }
         return shard;
     }
 
-    private void updateMinMax(long shardId) {
-        if (minShard > shardId)
-            minShard = shardId;
-        if (maxShard < shardId)
-            maxShard = shardId;
+    /**
+     * Returns the ids of the existing shards in the given range, inclusive, so that shards that have no data are not
+     * opened.
+     */
+    private List<Long> getShardIds(long fromShard, long toShard, boolean reverse) {
+        if (fromShard > toShard)
+            return new ArrayList<>();
+
+        NavigableSet<Long> ids;
+        synchronized (shardIds) {
+            ids = shardIds.subSet(fromShard, true, toShard, true);
+            if (reverse)
+                ids = ids.descendingSet();
+            return new ArrayList<>(ids);
+        }
     }
 }
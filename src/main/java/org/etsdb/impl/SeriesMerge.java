@@ -0,0 +1,90 @@
+package org.etsdb.impl;
+
+import org.etsdb.QueryCallback;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Returns the samples of several series in time stamp order. Each series is read by a cursor, and the cursors are kept
+ * in a heap that is ordered by the time stamps of their current samples, so each sample costs a sift of the heap
+ * rather than a comparison with every series. Samples with the same time stamp are returned in the order of the series
+ * in the list.
+ * <p>
+ * No locks are held while the callback is called, since the cursors only lock the database while they read a batch.
+ */
+class SeriesMerge<T> {
+    private final QueryCursor<T>[] cursors;
+    private final int[] heap;
+    private int size;
+
+    /**
+     * @param executor reads the batches of the series ahead, in parallel, if not null.
+     */
+    @SuppressWarnings("unchecked")
+    SeriesMerge(DatabaseImpl<T> db, List<String> seriesIds, long fromTs, long toTs, int limit, Executor executor) {
+        int batchSize = Math.min(limit, QueryCursor.BATCH_SIZE);
+        cursors = (QueryCursor<T>[]) new QueryCursor<?>[seriesIds.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = new QueryCursor<>(db, seriesIds.get(i), fromTs, toTs, false, batchSize, executor);
+        }
+        heap = new int[cursors.length];
+    }
+
+    void query(int limit, QueryCallback<T> cb) {
+        try {
+            for (QueryCursor<T> cursor : cursors) {
+                cursor.prefetch();
+            }
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i].next()) {
+                    heap[size++] = i;
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+
+            int count = 0;
+            while (size > 0 && count < limit) {
+                QueryCursor<T> cursor = cursors[heap[0]];
+                cb.sample(cursor.getSeriesId(), cursor.getTimestamp(), cursor.getValue());
+                count++;
+
+                if (!cursor.next()) {
+                    heap[0] = heap[--size];
+                }
+                siftDown(0);
+            }
+        } finally {
+            for (QueryCursor<T> cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void siftDown(int i) {
+        int item = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], item)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = item;
+    }
+
+    private boolean less(int a, int b) {
+        long tsa = cursors[a].getTimestamp();
+        long tsb = cursors[b].getTimestamp();
+        return tsa < tsb || (tsa == tsb && a < b);
+    }
+}
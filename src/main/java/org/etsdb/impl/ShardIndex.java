@@ -0,0 +1,247 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A sparse index of the records in a shard data file. An entry, consisting of the record's time offset and its
+ * position in the data file, is kept for the first record in the file, and then for the first record after every
+ * INTERVAL bytes. Since the records in a data file are in time order, a binary search of the entries finds a position
+ * from which to start reading that is at most one interval ahead of the first record of interest.
+ * <p>
+ * The index is stored next to the data file as "[shardId].idx", as a list of 12 byte entries: a 4 byte offset and an
+ * 8 byte position. The file is only a cache of what can be derived from the data file, so it is validated when loaded,
+ * and any entries it is missing are recreated by scanning the end of the data file.
+ */
+class ShardIndex {
+    private static final Logger logger = LoggerFactory.getLogger(ShardIndex.class.getName());
+
+    /**
+     * The minimum number of bytes between indexed records.
+     */
+    static final int INTERVAL = 4096;
+    private static final int ENTRY_LENGTH = 12;
+
+    private long[] offsets;
+    private long[] positions;
+    private int size;
+
+    /**
+     * The number of entries that are known to be in the index file.
+     */
+    private int savedSize;
+    /**
+     * If true, the index file contents are not a prefix of the entries, and so must be completely rewritten.
+     */
+    private boolean rewrite;
+
+    ShardIndex() {
+        offsets = new long[16];
+        positions = new long[16];
+        rewrite = true;
+    }
+
+    static File getIndexFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - 5) + ".idx");
+    }
+
+    /**
+     * Loads the index for the given data file, validating the entries in the index file and indexing any records in
+     * the data file that the index file does not cover.
+     */
+    static ShardIndex load(File dataFile) {
+        ShardIndex index = new ShardIndex();
+        if (!dataFile.exists())
+            return index;
+
+        long length = dataFile.length();
+        File indexFile = getIndexFile(dataFile);
+        if (indexFile.exists()) {
+            int entries = (int) (indexFile.length() / ENTRY_LENGTH);
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                for (int i = 0; i < entries; i++) {
+                    long offset = in.readInt() & 0xffffffffL;
+                    long position = in.readLong();
+
+                    // Entries must start at the beginning of the file, be in order, and be within the file.
+                    if (i == 0 && position != 0)
+                        break;
+                    if (i > 0 && (offset < index.offsets[index.size - 1] || position <= index.positions[index.size - 1]))
+                        break;
+                    if (position >= length)
+                        break;
+                    index.add(offset, position);
+                }
+            } catch (IOException e) {
+                logger.warn("Error reading index file " + indexFile + ". Rebuilding.", e);
+            } finally {
+                Utils.closeQuietly(in);
+            }
+
+            index.savedSize = index.size;
+            if (index.size == entries && indexFile.length() % ENTRY_LENGTH == 0)
+                index.rewrite = false;
+        }
+
+        // Index the records after the last entry.
+        long start = index.size == 0 ? 0 : index.positions[index.size - 1];
+        try {
+            index.scan(dataFile, start);
+        } catch (IOException e) {
+            if (start == 0)
+                logger.warn("Error while indexing " + dataFile + ". Index may be incomplete.", e);
+            else {
+                // The entries may be stale. Rebuild from the beginning.
+                index.clear();
+                try {
+                    index.scan(dataFile, 0);
+                } catch (IOException e1) {
+                    logger.warn("Error while indexing " + dataFile + ". Index may be incomplete.", e1);
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Creates a new index for the given data file by scanning all of its records.
+     */
+    static ShardIndex rebuild(File dataFile) throws IOException {
+        ShardIndex index = new ShardIndex();
+        index.scan(dataFile, 0);
+        return index;
+    }
+
+    private void scan(File dataFile, long start) throws IOException {
+        ChecksumInputStream in = null;
+        try {
+            ScanInfo scanInfo = new ScanInfo();
+            in = new ChecksumInputStream(dataFile, start);
+            while (true) {
+                long position = in.position();
+                DataShard._readSample(in, scanInfo);
+                if (scanInfo.isEof())
+                    break;
+                if (scanInfo.isBlockSample())
+                    // The block's checksum has already been verified. Only its position is needed.
+                    scanInfo.skipBlock();
+                else if (!in.checkSum())
+                    throw new IOException("Corruption detected in " + dataFile.getPath());
+                add(scanInfo.getOffset(), position);
+            }
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Notes the position of a record. The record is only indexed if it is the first in the file, or if it is at least
+     * an interval past the last indexed record.
+     *
+     * @param offset   the time offset of the record
+     * @param position the position of the record in the data file. Records must be added in the order of the file.
+     */
+    void add(long offset, long position) {
+        if (size > 0) {
+            if (position <= positions[size - 1])
+                return;
+            if (position - positions[size - 1] < INTERVAL)
+                return;
+        } else if (position != 0)
+            return;
+
+        if (size == offsets.length) {
+            long[] o = new long[size << 1];
+            System.arraycopy(offsets, 0, o, 0, size);
+            offsets = o;
+            long[] p = new long[size << 1];
+            System.arraycopy(positions, 0, p, 0, size);
+            positions = p;
+        }
+        offsets[size] = offset;
+        positions[size] = position;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+        rewrite = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getOffset(int index) {
+        return offsets[index];
+    }
+
+    long getPosition(int index) {
+        return positions[index];
+    }
+
+    /**
+     * Returns the index of the last entry with a time offset less than the given offset, or -1 if there is none. All
+     * records before the entry's position are also before the given offset, so a scan for the first record at or
+     * after the given offset can start there.
+     */
+    int floor(long offset) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] < offset)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    /**
+     * Returns the file position from which to scan for the first record at or after the given offset.
+     */
+    long getStartPosition(long offset) {
+        int i = floor(offset);
+        if (i == -1)
+            return 0;
+        return positions[i];
+    }
+
+    /**
+     * Writes any unsaved entries to the index file.
+     */
+    void save(File dataFile) throws IOException {
+        if (!rewrite && savedSize == size)
+            return;
+
+        File indexFile = getIndexFile(dataFile);
+        int from = rewrite ? 0 : savedSize;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, !rewrite)));
+            for (int i = from; i < size; i++) {
+                out.writeInt((int) offsets[i]);
+                out.writeLong(positions[i]);
+            }
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        savedSize = size;
+        rewrite = false;
+    }
+}
@@ -0,0 +1,491 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.NumericSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rollups of the numeric samples in a shard data file at coarser resolutions, so that aggregations over long time
+ * ranges can read a record per interval rather than every sample. Each tier has a fixed interval, aligned to multiples
+ * of the interval since the epoch like the intervals of Database.aggregate, and holds the count, minimum, maximum, sum,
+ * first and last value of each interval that has samples. The tiers are fed by the shard summary as samples are
+ * appended, so they cover exactly the samples in the data file. Out-of-order samples and deleted samples are left to
+ * the query until the data file is rewritten, which rebuilds the rollups.
+ * <p>
+ * Each tier is stored next to the data file as "[shardId].[interval].rollup", as a list of 64 byte records in interval
+ * order. The last record is the interval that samples are still being added to, and is replaced when the file is
+ * saved. Like the summary, the file is only a cache. Each record holds the running count of the samples up to it, which
+ * is checked against the summary when the file is loaded: if the tier has fewer samples, the data file is scanned from
+ * the start of its last interval, and if it has more, or cannot be read, it is rebuilt.
+ */
+class ShardRollups {
+    private static final Logger logger = LoggerFactory.getLogger(ShardRollups.class.getName());
+    private static final String SUFFIX = ".rollup";
+    private static final int RECORD_LENGTH = 64;
+    /**
+     * The number of bytes of complete records that a tier holds in memory before the rollups should be saved.
+     */
+    private static final int MAX_PENDING = 256 * RECORD_LENGTH;
+
+    private final File dataFile;
+    private final long shardId;
+    private final Tier[] tiers;
+
+    /**
+     * Creates empty rollups for a data file that is written from the beginning.
+     */
+    ShardRollups(File dataFile, long shardId, long[] intervals) {
+        this.dataFile = dataFile;
+        this.shardId = shardId;
+        tiers = new Tier[intervals.length];
+        for (int i = 0; i < intervals.length; i++) {
+            tiers[i] = new Tier(intervals[i], getRollupFile(dataFile, intervals[i]));
+        }
+    }
+
+    static File getRollupFile(File dataFile, long interval) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - 5) + "." + interval + SUFFIX);
+    }
+
+    static boolean isRollupFile(String name) {
+        return name.endsWith(SUFFIX);
+    }
+
+    /**
+     * @return the shard id of a rollup file name.
+     */
+    static long getShardId(String name) {
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    /**
+     * Deletes the rollup files of the given data file, of all intervals.
+     */
+    static void deleteFiles(File dataFile) throws IOException {
+        String name = dataFile.getName();
+        String prefix = name.substring(0, name.length() - 5) + ".";
+        File[] files = dataFile.getParentFile().listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && isRollupFile(file.getName()))
+                Utils.deleteWithRetry(file);
+        }
+    }
+
+    /**
+     * Loads the tiers from their files and brings them up to date with the data file.
+     *
+     * @param numericCount the number of numeric samples in the data file, from the summary.
+     */
+    void load(NumericSerializer<?> serializer, ShardIndex index, long numericCount) {
+        if (!dataFile.exists())
+            return;
+
+        long resumeTs = Long.MAX_VALUE;
+        for (Tier tier : tiers) {
+            resumeTs = Math.min(resumeTs, tier.load(numericCount));
+        }
+        if (resumeTs == Long.MAX_VALUE)
+            return;
+
+        try {
+            scan(serializer, index, resumeTs);
+        } catch (IOException e) {
+            logger.warn("Error while rolling up " + dataFile + ". Rollups may be incomplete.", e);
+            return;
+        }
+
+        boolean complete = true;
+        for (Tier tier : tiers) {
+            complete &= tier.getCount() == numericCount;
+        }
+        if (!complete) {
+            // The records that were kept do not match the data file.
+            logger.warn("Rollups of " + dataFile + " do not match the data file. Rebuilding.");
+            for (Tier tier : tiers) {
+                tier.reset();
+            }
+            try {
+                scan(serializer, index, Long.MIN_VALUE);
+            } catch (IOException e) {
+                logger.warn("Error while rolling up " + dataFile + ". Rollups may be incomplete.", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the numeric samples from the given time to the tiers that need them.
+     */
+    private void scan(NumericSerializer<?> serializer, ShardIndex index, long fromTs) throws IOException {
+        if (serializer == null) {
+            // Without a numeric serializer there are no numeric samples.
+            return;
+        }
+        ChecksumInputStream in = null;
+        try {
+            long start = index.getStartPosition(Utils.getOffsetInShard(shardId, fromTs));
+            ScanInfo scanInfo = new ScanInfo(serializer);
+            ByteArrayBuilder b = scanInfo.getData();
+            in = new ChecksumInputStream(dataFile, start);
+            while (true) {
+                DataShard._readSample(in, scanInfo);
+                if (scanInfo.isEof())
+                    break;
+                if (!scanInfo.isBlockSample() && !in.checkSum())
+                    throw new IOException("Corruption detected in " + dataFile.getPath());
+
+                long ts = Utils.getTimestamp(shardId, scanInfo.getOffset());
+                if (ts < fromTs || serializer.getNumericType(b.getBuffer(), b.getReadOffset(), b.getAvailable()) == -1)
+                    continue;
+                double value = serializer.toDouble(b.getBuffer(), b.getReadOffset(), b.getAvailable());
+                for (Tier tier : tiers) {
+                    if (ts >= tier.resumeTs)
+                        tier.add(ts, value);
+                }
+            }
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Adds a numeric sample. Samples must be added in time order.
+     */
+    void add(long offset, double value) {
+        long ts = Utils.getTimestamp(shardId, offset);
+        for (Tier tier : tiers) {
+            tier.add(ts, value);
+        }
+    }
+
+    /**
+     * @return true if a tier holds enough complete records in memory that the rollups should be saved.
+     */
+    boolean isSaveDue() {
+        for (Tier tier : tiers) {
+            if (tier.pending.size() >= MAX_PENDING)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the index of the coarsest tier whose interval divides the given one, or -1 if there is none.
+     */
+    int getTier(long interval) {
+        for (int i = tiers.length - 1; i >= 0; i--) {
+            if (interval % tiers[i].interval == 0)
+                return i;
+        }
+        return -1;
+    }
+
+    long getInterval(int tier) {
+        return tiers[tier].interval;
+    }
+
+    /**
+     * @return the end of the interval that samples are being added to in the given tier, or Long.MIN_VALUE if there is
+     * none.
+     */
+    long getCurrentEnd(int tier) {
+        Bucket current = tiers[tier].current;
+        return current.count == 0 ? Long.MIN_VALUE : current.start + tiers[tier].interval;
+    }
+
+    /**
+     * Returns the records of the given tier that start in the given range, in time order.
+     *
+     * @param includeCurrent whether to include the interval that samples are being added to.
+     */
+    List<Bucket> read(int tierIndex, long fromTs, long toTs, boolean includeCurrent) throws IOException {
+        Tier tier = tiers[tierIndex];
+        List<Bucket> buckets = new ArrayList<>();
+
+        if (tier.savedLength > 0) {
+            RandomAccessFile file = new RandomAccessFile(tier.file, "r");
+            try {
+                // Find the first record in the range.
+                byte[] record = new byte[RECORD_LENGTH];
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                long low = 0;
+                long high = tier.savedLength / RECORD_LENGTH;
+                while (low < high) {
+                    long mid = (low + high) >>> 1;
+                    file.seek(mid * RECORD_LENGTH);
+                    if (file.readLong() < fromTs)
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+
+                file.seek(low * RECORD_LENGTH);
+                for (long i = low; i < tier.savedLength / RECORD_LENGTH; i++) {
+                    file.readFully(record);
+                    buffer.clear();
+                    Bucket bucket = Bucket.read(buffer);
+                    if (bucket.start >= toTs)
+                        return buckets;
+                    buckets.add(bucket);
+                }
+            } finally {
+                Utils.closeQuietly(file);
+            }
+        }
+
+        ByteBuffer pending = ByteBuffer.wrap(tier.pending.getBuffer(), 0, tier.pending.size());
+        while (pending.hasRemaining()) {
+            Bucket bucket = Bucket.read(pending);
+            if (bucket.start >= toTs)
+                return buckets;
+            if (bucket.start >= fromTs)
+                buckets.add(bucket);
+        }
+
+        Bucket current = tier.current;
+        if (includeCurrent && current.count > 0 && current.start >= fromTs && current.start < toTs)
+            buckets.add(current.copy());
+        return buckets;
+    }
+
+    /**
+     * Writes the complete records that are held in memory, and the current interval, to the files of the tiers that
+     * have changed.
+     */
+    void save() throws IOException {
+        for (Tier tier : tiers) {
+            tier.save();
+        }
+    }
+
+    /**
+     * The samples of an interval.
+     */
+    static class Bucket {
+        long start;
+        long count;
+        double min;
+        double max;
+        double sum;
+        double first;
+        double last;
+
+        void add(double value) {
+            if (count == 0) {
+                min = max = first = value;
+                sum = 0;
+            } else if (value < min) {
+                min = value;
+            } else if (value > max) {
+                max = value;
+            }
+            sum += value;
+            last = value;
+            count++;
+        }
+
+        Bucket copy() {
+            Bucket copy = new Bucket();
+            copy.start = start;
+            copy.count = count;
+            copy.min = min;
+            copy.max = max;
+            copy.sum = sum;
+            copy.first = first;
+            copy.last = last;
+            return copy;
+        }
+
+        void write(DataOutputStream out, long total) throws IOException {
+            out.writeLong(start);
+            out.writeLong(count);
+            out.writeLong(total);
+            out.writeDouble(min);
+            out.writeDouble(max);
+            out.writeDouble(sum);
+            out.writeDouble(first);
+            out.writeDouble(last);
+        }
+
+        /**
+         * Reads a record, skipping its running count.
+         */
+        static Bucket read(ByteBuffer buffer) {
+            Bucket bucket = new Bucket();
+            bucket.start = buffer.getLong();
+            bucket.count = buffer.getLong();
+            buffer.getLong();
+            bucket.min = buffer.getDouble();
+            bucket.max = buffer.getDouble();
+            bucket.sum = buffer.getDouble();
+            bucket.first = buffer.getDouble();
+            bucket.last = buffer.getDouble();
+            return bucket;
+        }
+    }
+
+    private static class Tier {
+        final long interval;
+        final File file;
+        /**
+         * The length of the complete records in the file. The current interval is written after them.
+         */
+        long savedLength;
+        /**
+         * The complete records that have not been saved.
+         */
+        final Buffer pending = new Buffer();
+        final DataOutputStream pendingOut = new DataOutputStream(pending);
+        /**
+         * The number of samples in the complete records.
+         */
+        long total;
+        Bucket current = new Bucket();
+        /**
+         * When the tier is loaded, the time from which the data file needs to be added.
+         */
+        long resumeTs = Long.MIN_VALUE;
+        /**
+         * True if the tier has changed since it was saved.
+         */
+        boolean dirty = true;
+
+        Tier(long interval, File file) {
+            this.interval = interval;
+            this.file = file;
+        }
+
+        long getCount() {
+            return total + current.count;
+        }
+
+        /**
+         * Reads the last record of the file as the current interval.
+         *
+         * @return the time from which the data file needs to be added, or Long.MAX_VALUE if the tier is up to date.
+         */
+        long load(long numericCount) {
+            if (file.exists()) {
+                try {
+                    read();
+                } catch (IOException e) {
+                    logger.warn("Error reading rollup file " + file + ". Rebuilding.", e);
+                    reset();
+                }
+            }
+
+            if (getCount() > numericCount) {
+                // The rollups are not of this data file.
+                reset();
+            }
+            if (getCount() == numericCount) {
+                dirty = false;
+                resumeTs = Long.MAX_VALUE;
+            } else if (current.count > 0) {
+                // Add the samples of the current interval again, along with those after it.
+                resumeTs = current.start;
+                current = new Bucket();
+            }
+            return resumeTs;
+        }
+
+        private void read() throws IOException {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                long length = in.length() / RECORD_LENGTH * RECORD_LENGTH;
+                if (length == 0)
+                    return;
+
+                byte[] record = new byte[RECORD_LENGTH];
+                in.seek(length - RECORD_LENGTH);
+                in.readFully(record);
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                Bucket last = Bucket.read(buffer);
+                long lastTotal = buffer.getLong(16);
+                if (last.count <= 0 || lastTotal < last.count)
+                    throw new IOException("Invalid counts: " + last.count + ", " + lastTotal);
+
+                current = last;
+                total = lastTotal - last.count;
+                savedLength = length - RECORD_LENGTH;
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        }
+
+        void reset() {
+            savedLength = 0;
+            pending.reset();
+            total = 0;
+            current = new Bucket();
+            resumeTs = Long.MIN_VALUE;
+            dirty = true;
+        }
+
+        void add(long ts, double value) {
+            long start = Math.floorDiv(ts, interval) * interval;
+            if (current.count > 0 && start != current.start) {
+                total += current.count;
+                try {
+                    current.write(pendingOut, total);
+                } catch (IOException e) {
+                    // Not thrown by the buffer.
+                    throw new RuntimeException(e);
+                }
+                current = new Bucket();
+            }
+            if (current.count == 0)
+                current.start = start;
+            current.add(value);
+            dirty = true;
+        }
+
+        void save() throws IOException {
+            if (!dirty)
+                return;
+
+            if (savedLength == 0 && pending.size() == 0 && current.count == 0) {
+                Utils.deleteWithRetry(file);
+            } else {
+                RandomAccessFile out = new RandomAccessFile(file, "rw");
+                try {
+                    out.setLength(savedLength);
+                    out.seek(savedLength);
+                    out.write(pending.getBuffer(), 0, pending.size());
+                    if (current.count > 0) {
+                        Buffer record = new Buffer();
+                        current.write(new DataOutputStream(record), getCount());
+                        out.write(record.getBuffer(), 0, record.size());
+                    }
+                } finally {
+                    Utils.closeQuietly(out);
+                }
+                savedLength += pending.size();
+                pending.reset();
+            }
+
+            dirty = false;
+        }
+    }
+
+    /**
+     * A byte array output stream that gives access to its buffer.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.etsdb.impl;
+
+import org.etsdb.ByteArrayBuilder;
+import org.etsdb.NumericSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A summary of the samples in a shard data file: the number of samples, the first and last samples, and for the
+ * samples that the serializer considers numeric, their count, minimum, maximum and sum. The summary is updated as
+ * samples are appended, so counts and first/last lookups do not need to read the data file.
+ * <p>
+ * The summary is stored next to the data file as "[shardId].sum", along with the length of the data file that it
+ * covers. Like the index, the file is only a cache of what can be derived from the data file, so any records after the
+ * covered length are scanned when it is loaded, and it is rebuilt if it is unreadable or covers more than the file.
+ */
+class ShardSummary {
+    private static final Logger logger = LoggerFactory.getLogger(ShardSummary.class.getName());
+
+    private final NumericSerializer<?> serializer;
+
+    private long count;
+    private long minOffset;
+    private long maxOffset;
+    private byte[] first = new byte[16];
+    private int firstLength;
+    private byte[] last = new byte[16];
+    private int lastLength;
+
+    private long numericCount;
+    private double min;
+    private double max;
+    private double sum;
+
+    /**
+     * The rollups that are fed the numeric samples as they are added, if any.
+     */
+    private ShardRollups rollups;
+
+    /**
+     * True if the summary has changed since it was saved.
+     */
+    private boolean dirty;
+
+    /**
+     * @param serializer used to find numeric samples, or null if the database's serializer is not numeric, in which
+     *                   case there are no numeric statistics.
+     */
+    ShardSummary(NumericSerializer<?> serializer) {
+        this.serializer = serializer;
+        dirty = true;
+    }
+
+    static File getSummaryFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - 5) + ".sum");
+    }
+
+    /**
+     * Loads the summary for the given data file, adding any records in the data file that the summary file does not
+     * cover.
+     */
+    static ShardSummary load(File dataFile, NumericSerializer<?> serializer) {
+        ShardSummary summary = new ShardSummary(serializer);
+        if (!dataFile.exists())
+            return summary;
+
+        long length = dataFile.length();
+        long start = 0;
+        File summaryFile = getSummaryFile(dataFile);
+        if (summaryFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(summaryFile)));
+                start = summary.read(in);
+                if (start > length) {
+                    // The summary is not of this data file.
+                    summary = new ShardSummary(serializer);
+                    start = 0;
+                } else
+                    summary.dirty = start < length;
+            } catch (IOException e) {
+                logger.warn("Error reading summary file " + summaryFile + ". Rebuilding.", e);
+                summary = new ShardSummary(serializer);
+                start = 0;
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        }
+
+        if (start < length) {
+            try {
+                summary.scan(dataFile, start);
+            } catch (IOException e) {
+                if (start == 0)
+                    logger.warn("Error while summarizing " + dataFile + ". Summary may be incomplete.", e);
+                else {
+                    // The covered length may be stale. Rebuild from the beginning.
+                    summary = new ShardSummary(serializer);
+                    try {
+                        summary.scan(dataFile, 0);
+                    } catch (IOException e1) {
+                        logger.warn("Error while summarizing " + dataFile + ". Summary may be incomplete.", e1);
+                    }
+                }
+            }
+        }
+
+        return summary;
+    }
+
+    private void scan(File dataFile, long start) throws IOException {
+        ChecksumInputStream in = null;
+        try {
+            ScanInfo scanInfo = new ScanInfo(serializer);
+            ByteArrayBuilder b = scanInfo.getData();
+            in = new ChecksumInputStream(dataFile, start);
+            while (true) {
+                DataShard._readSample(in, scanInfo);
+                if (scanInfo.isEof())
+                    break;
+                if (!scanInfo.isBlockSample() && !in.checkSum())
+                    throw new IOException("Corruption detected in " + dataFile.getPath());
+                add(scanInfo.getOffset(), b.getBuffer(), b.getReadOffset(), b.getAvailable());
+            }
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Adds a sample to the summary. Samples must be added in time order.
+     */
+    void add(long offset, byte[] data, int off, int len) {
+        if (count == 0) {
+            minOffset = offset;
+            first = copy(first, data, off, len);
+            firstLength = len;
+        }
+        count++;
+        maxOffset = offset;
+        last = copy(last, data, off, len);
+        lastLength = len;
+
+        if (serializer != null && serializer.getNumericType(data, off, len) != -1) {
+            double value = serializer.toDouble(data, off, len);
+            if (numericCount == 0) {
+                min = max = value;
+            } else {
+                if (value < min)
+                    min = value;
+                if (value > max)
+                    max = value;
+            }
+            sum += value;
+            numericCount++;
+            if (rollups != null)
+                rollups.add(offset, value);
+        }
+
+        dirty = true;
+    }
+
+    private static byte[] copy(byte[] to, byte[] data, int off, int len) {
+        if (to.length < len)
+            to = new byte[len];
+        System.arraycopy(data, off, to, 0, len);
+        return to;
+    }
+
+    void setRollups(ShardRollups rollups) {
+        this.rollups = rollups;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMinOffset() {
+        return minOffset;
+    }
+
+    long getMaxOffset() {
+        return maxOffset;
+    }
+
+    /**
+     * Copies the data of the first sample into the given builder.
+     */
+    void getFirst(ByteArrayBuilder b) {
+        b.clear();
+        b.put(first, 0, firstLength);
+    }
+
+    /**
+     * Copies the data of the last sample into the given builder.
+     */
+    void getLast(ByteArrayBuilder b) {
+        b.clear();
+        b.put(last, 0, lastLength);
+    }
+
+    long getNumericCount() {
+        return numericCount;
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    double getSum() {
+        return sum;
+    }
+
+    /**
+     * Writes the summary to the summary file if it has changed.
+     */
+    void save(File dataFile) throws IOException {
+        if (!dirty)
+            return;
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getSummaryFile(dataFile))));
+            out.writeLong(dataFile.length());
+            out.writeLong(count);
+            out.writeInt((int) minOffset);
+            out.writeInt((int) maxOffset);
+            out.writeLong(numericCount);
+            out.writeDouble(min);
+            out.writeDouble(max);
+            out.writeDouble(sum);
+            out.writeInt(firstLength);
+            out.write(first, 0, firstLength);
+            out.writeInt(lastLength);
+            out.write(last, 0, lastLength);
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * @return the length of the data file that the summary covers.
+     */
+    private long read(DataInputStream in) throws IOException {
+        long length = in.readLong();
+        count = in.readLong();
+        minOffset = in.readInt() & 0xffffffffL;
+        maxOffset = in.readInt() & 0xffffffffL;
+        numericCount = in.readLong();
+        min = in.readDouble();
+        max = in.readDouble();
+        sum = in.readDouble();
+        firstLength = readLength(in);
+        first = new byte[Math.max(firstLength, 16)];
+        in.readFully(first, 0, firstLength);
+        lastLength = readLength(in);
+        last = new byte[Math.max(lastLength, 16)];
+        in.readFully(last, 0, lastLength);
+        if (count < 0 || numericCount < 0 || numericCount > count)
+            throw new IOException("Invalid counts: " + count + ", " + numericCount);
+        return length;
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Utils.MAX_DATA_LENGTH)
+            throw new IOException("Invalid sample length: " + length);
+        return length;
+    }
+}
@@ -0,0 +1,214 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The ranges of a shard's data file that have been deleted, but not yet removed from the file. Reads skip the samples
+ * in the ranges, and the samples are removed when the data file is next rewritten. The ranges are kept sorted and
+ * merged, so that checking an offset is a binary search. A sample that is written into a range after the delete cuts
+ * a hole for its offset, so that it stays visible.
+ * <p>
+ * The tombstones are stored next to the data file as "[shardId].del", as a list of 8 byte entries: a 4 byte first
+ * offset and a 4 byte last offset, both inclusive.
+ */
+class ShardTombstones {
+    private static final Logger logger = LoggerFactory.getLogger(ShardTombstones.class.getName());
+
+    private final File file;
+    private long[] froms = new long[4];
+    private long[] tos = new long[4];
+    private int size;
+
+    private ShardTombstones(File file) {
+        this.file = file;
+    }
+
+    static File getTombstoneFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - 5) + ".del");
+    }
+
+    static ShardTombstones load(File dataFile) {
+        ShardTombstones tombstones = new ShardTombstones(getTombstoneFile(dataFile));
+        if (!tombstones.file.exists())
+            return tombstones;
+
+        int entries = (int) (tombstones.file.length() / 8);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(tombstones.file)));
+            for (int i = 0; i < entries; i++) {
+                long from = in.readInt() & 0xffffffffL;
+                long to = in.readInt() & 0xffffffffL;
+                tombstones.add(from, to);
+            }
+        } catch (IOException e) {
+            logger.warn("Error reading tombstone file " + tombstones.file + ". Deleted samples may reappear.", e);
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        return tombstones;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if the offset is in a deleted range.
+     */
+    boolean covers(long offset) {
+        int index = floor(offset);
+        return index != -1 && offset <= tos[index];
+    }
+
+    /**
+     * @return true if every offset in the given inclusive range is deleted.
+     */
+    boolean covers(long from, long to) {
+        int index = floor(from);
+        return index != -1 && to <= tos[index];
+    }
+
+    /**
+     * @return true if any offset in the given inclusive range is deleted.
+     */
+    boolean overlaps(long from, long to) {
+        int index = floor(to);
+        return index != -1 && from <= tos[index];
+    }
+
+    /**
+     * @return the first offset at or after the given one that is not deleted.
+     */
+    long skip(long offset) {
+        int index = floor(offset);
+        if (index != -1 && offset <= tos[index])
+            return tos[index] + 1;
+        return offset;
+    }
+
+    /**
+     * Adds a deleted range, merging it with any ranges that it overlaps or touches.
+     */
+    void add(long from, long to) {
+        if (from > to)
+            return;
+
+        // Find the ranges that the new one overlaps or touches.
+        int first = floor(from);
+        if (first == -1 || tos[first] + 1 < from)
+            first++;
+        int last = floor(to + 1);
+
+        if (first <= last) {
+            // Merge with the ranges from first to last.
+            from = Math.min(from, froms[first]);
+            to = Math.max(to, tos[last]);
+            int removed = last - first;
+            System.arraycopy(froms, last + 1, froms, first + 1, size - last - 1);
+            System.arraycopy(tos, last + 1, tos, first + 1, size - last - 1);
+            size -= removed;
+        } else {
+            // Insert a new range.
+            ensureCapacity(size + 1);
+            System.arraycopy(froms, first, froms, first + 1, size - first);
+            System.arraycopy(tos, first, tos, first + 1, size - first);
+            size++;
+        }
+        froms[first] = from;
+        tos[first] = to;
+    }
+
+    /**
+     * Removes the given offset from the deleted ranges, so that a sample that is written there is visible.
+     *
+     * @return true if the offset was in a deleted range.
+     */
+    boolean remove(long offset) {
+        int index = floor(offset);
+        if (index == -1 || offset > tos[index])
+            return false;
+
+        long from = froms[index];
+        long to = tos[index];
+        if (from == offset && to == offset) {
+            System.arraycopy(froms, index + 1, froms, index, size - index - 1);
+            System.arraycopy(tos, index + 1, tos, index, size - index - 1);
+            size--;
+        } else if (from == offset)
+            froms[index] = offset + 1;
+        else if (to == offset)
+            tos[index] = offset - 1;
+        else {
+            // Split the range.
+            tos[index] = offset - 1;
+            add(offset + 1, to);
+        }
+        return true;
+    }
+
+    void save() throws IOException {
+        if (size == 0) {
+            Utils.deleteWithRetry(file);
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            for (int i = 0; i < size; i++) {
+                out.writeInt((int) froms[i]);
+                out.writeInt((int) tos[i]);
+            }
+        } finally {
+            Utils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Removes the ranges and the file, once the deleted samples have been removed from the data file.
+     */
+    void clear() throws IOException {
+        size = 0;
+        Utils.deleteWithRetry(file);
+    }
+
+    /**
+     * @return the index of the last range that starts at or before the offset, or -1 if there is none.
+     */
+    private int floor(long offset) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (froms[mid] <= offset)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > froms.length) {
+            long[] f = new long[froms.length << 1];
+            System.arraycopy(froms, 0, f, 0, size);
+            froms = f;
+            long[] t = new long[tos.length << 1];
+            System.arraycopy(tos, 0, t, 0, size);
+            tos = t;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.etsdb.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The byte slabs that hold the data of the shards' pending writes. Slab sizes are powers of 2, starting at MIN_SIZE,
+ * and slabs that are returned when their shard's queue is flushed are kept for reuse, up to MAX_POOLED_BYTES in total,
+ * so that a steady flow of queued writes does not keep allocating new arrays.
+ */
+class SlabPool {
+    static final int MIN_SIZE = 256;
+    static final int MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private final List<ArrayDeque<byte[]>> free = new ArrayList<>();
+    private long pooledBytes;
+
+    SlabPool() {
+        for (int i = sizeClass(Integer.MAX_VALUE); i >= 0; i--) {
+            free.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * @return a slab of at least the given size.
+     */
+    synchronized byte[] take(int size) {
+        int sizeClass = sizeClass(size);
+        byte[] slab = free.get(sizeClass).poll();
+        if (slab != null) {
+            pooledBytes -= slab.length;
+            return slab;
+        }
+        return new byte[MIN_SIZE << sizeClass];
+    }
+
+    synchronized void give(byte[] slab) {
+        if (pooledBytes + slab.length <= MAX_POOLED_BYTES) {
+            free.get(sizeClass(slab.length)).push(slab);
+            pooledBytes += slab.length;
+        }
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return the power of 2 by which MIN_SIZE must be multiplied to hold the given size.
+     */
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+    }
+}
@@ -15,6 +15,8 @@ public class Utils {
 
     // This value must have at least one byte.
     static final byte[] SAMPLE_HEADER = {(byte) 0xfe, (byte) 0xed};
+    // The header of a numeric block record. Only the last byte differs from the sample header.
+    static final byte[] BLOCK_HEADER = {(byte) 0xfe, (byte) 0xeb};
 
     public static final int MAX_DATA_LENGTH = 8192; // 8K
     private static final Logger logger = LoggerFactory.getLogger(Utils.class.getName());
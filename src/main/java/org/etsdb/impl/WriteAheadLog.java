@@ -0,0 +1,344 @@
+package org.etsdb.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A log of the writes in the write queue, so that queued writes are not lost if the process dies before the queue is
+ * flushed. Writes are appended to the current segment file, "[sequence].wal" in the database directory, and the log
+ * moves on to a new segment once the current one reaches the segment size. A segment is deleted once none of the
+ * shards' queues hold a write from it or an earlier segment. Every write is passed to the OS as it is logged, and the
+ * log is forced to disk at the sync interval by its own thread.
+ * <p>
+ * Each record is a type byte and the series id, followed by the timestamp and data of a write, or the inclusive time
+ * range of a delete, and then a checksum byte. Deletes are logged so that queued writes that were deleted do not
+ * reappear when the log is replayed.
+ */
+class WriteAheadLog implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class.getName());
+
+    private static final String SUFFIX = ".wal";
+    private static final int WRITE = 1;
+    private static final int DELETE = 2;
+
+    private final DatabaseImpl<?> db;
+    private final int segmentSize;
+    private final int syncInterval;
+
+    /**
+     * The shards with queued writes that are in the log. Their walSequence is the first segment that they need.
+     */
+    private final Set<DataShard> shards = new HashSet<>();
+    private long sequence;
+    private ChecksumOutputStream out;
+    private DataOutputStream dataOut;
+    private boolean dirty;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    WriteAheadLog(DatabaseImpl<?> db, int segmentSize, int syncInterval) {
+        this.db = db;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @return the segment files in the given database directory, in the order in which they were written.
+     */
+    static List<File> getSegments(File baseDir) {
+        File[] files = baseDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+
+        List<File> segments = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (getSequence(file) != -1)
+                    segments.add(file);
+            }
+        }
+
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(getSequence(f1), getSequence(f2));
+            }
+        });
+        return segments;
+    }
+
+    private static long getSequence(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the samples in the given segments, which were left by a previous run, back into the database. Samples
+     * that are not after the latest time of their shard were already written to the shard's data file, and are
+     * skipped.
+     *
+     * @return the number of samples that were written.
+     */
+    static int replay(DatabaseImpl<?> db, List<File> segments) throws IOException {
+        // Collect the samples that remain after deletes.
+        Map<String, TreeMap<Long, byte[]>> samples = new HashMap<>();
+        for (File segment : segments) {
+            read(segment, samples);
+        }
+
+        int count = 0;
+        for (Map.Entry<String, TreeMap<Long, byte[]>> series : samples.entrySet()) {
+            for (Map.Entry<Long, byte[]> sample : series.getValue().entrySet()) {
+                if (db.replay(series.getKey(), sample.getKey(), sample.getValue()))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    private static void read(File segment, Map<String, TreeMap<Long, byte[]>> samples) {
+        ChecksumInputStream in = new ChecksumInputStream(segment);
+        DataInputStream dataIn = new DataInputStream(in);
+        long position = 0;
+        try {
+            while (true) {
+                int type = dataIn.read();
+                if (type == -1)
+                    break;
+
+                String seriesId = dataIn.readUTF();
+                if (type == WRITE) {
+                    long ts = dataIn.readLong();
+                    int len = dataIn.readInt();
+                    if (len < 0 || len > segment.length())
+                        throw new IOException("Invalid sample length " + len + " in " + segment.getPath());
+                    byte[] data = new byte[len];
+                    dataIn.readFully(data);
+                    if (!in.checkSum())
+                        throw new IOException("Corruption detected in " + segment.getPath());
+
+                    TreeMap<Long, byte[]> series = samples.get(seriesId);
+                    if (series == null) {
+                        series = new TreeMap<>();
+                        samples.put(seriesId, series);
+                    }
+                    series.put(ts, data);
+                } else if (type == DELETE) {
+                    long fromTs = dataIn.readLong();
+                    long toTs = dataIn.readLong();
+                    if (!in.checkSum())
+                        throw new IOException("Corruption detected in " + segment.getPath());
+
+                    TreeMap<Long, byte[]> series = samples.get(seriesId);
+                    if (series != null)
+                        series.subMap(fromTs, true, toTs, true).clear();
+                } else
+                    throw new IOException("Unknown record type " + type + " in " + segment.getPath());
+                position = in.position();
+            }
+        } catch (EOFException e) {
+            // The last record was not completely written.
+            logger.warn("Incomplete record in write-ahead log " + segment + " at " + position);
+        } catch (IOException e) {
+            logger.warn("Error reading write-ahead log " + segment + ". Stopped at " + position, e);
+        } finally {
+            Utils.closeQuietly(dataIn);
+        }
+    }
+
+    /**
+     * Starts a new segment after the given existing ones, and starts the sync thread.
+     */
+    void initiate(List<File> segments) throws IOException {
+        sequence = segments.isEmpty() ? 1 : getSequence(segments.get(segments.size() - 1)) + 1;
+        openSegment();
+
+        running = true;
+        thread = new Thread(this, "WAL sync " + db.getBaseDir().getPath());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Logs a write to the queue of the given shard. Called while the shard is write locked.
+     */
+    synchronized void append(DataShard shard, String seriesId, long ts, byte[] data, int off, int len)
+            throws IOException {
+        if (shards.add(shard))
+            shard.walSequence = sequence;
+
+        dataOut.write(WRITE);
+        dataOut.writeUTF(seriesId);
+        dataOut.writeLong(ts);
+        dataOut.writeInt(len);
+        dataOut.write(data, off, len);
+        written();
+    }
+
+    /**
+     * Logs a delete, so that the queued writes that it removed are not replayed.
+     */
+    synchronized void delete(String seriesId, long fromTs, long toTs) throws IOException {
+        dataOut.write(DELETE);
+        dataOut.writeUTF(seriesId);
+        dataOut.writeLong(fromTs);
+        dataOut.writeLong(toTs);
+        written();
+    }
+
+    /**
+     * Called while the given shard is write locked, when its queue has been written to its data file or is empty.
+     */
+    synchronized void flushed(DataShard shard) {
+        shards.remove(shard);
+    }
+
+    /**
+     * Deletes the segments whose writes have all been written to the data files. Called by the flush process.
+     */
+    synchronized void truncate() {
+        long keep = sequence;
+        for (DataShard shard : shards) {
+            keep = Math.min(keep, shard.walSequence);
+        }
+
+        try {
+            if (shards.isEmpty() && out.position() > 0) {
+                // Nothing in the current segment is needed either, so start a new one so that it can be deleted.
+                rotate();
+                keep = sequence;
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to start a new write-ahead log segment", e);
+        }
+
+        for (File segment : getSegments(db.getBaseDir())) {
+            if (getSequence(segment) >= keep)
+                break;
+            try {
+                Utils.deleteWithRetry(segment);
+            } catch (IOException e) {
+                logger.warn("Failed to delete write-ahead log segment " + segment, e);
+            }
+        }
+    }
+
+    /**
+     * Stops the sync thread and closes the current segment. The segments are deleted if all of the writes in them have
+     * been written to the data files.
+     */
+    void close() {
+        synchronized (this) {
+            running = false;
+            notify();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            // no op
+        }
+
+        synchronized (this) {
+            truncate();
+            closeSegment();
+            if (shards.isEmpty()) {
+                try {
+                    Utils.deleteWithRetry(getSegmentFile());
+                } catch (IOException e) {
+                    logger.warn("Failed to delete write-ahead log segment " + getSegmentFile(), e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            ChecksumOutputStream syncOut = null;
+            synchronized (this) {
+                try {
+                    wait(syncInterval);
+                } catch (InterruptedException ignore) {
+                }
+
+                if (dirty) {
+                    syncOut = out;
+                    dirty = false;
+                }
+            }
+
+            // Sync outside of the lock so that writes are not held up.
+            if (syncOut != null) {
+                try {
+                    syncOut.force();
+                } catch (ClosedChannelException e) {
+                    // The segment was closed, which syncs it.
+                } catch (IOException e) {
+                    logger.warn("Failed to sync write-ahead log", e);
+                }
+            }
+        }
+    }
+
+    private void written() throws IOException {
+        out.writeSum();
+        // Pass the record to the OS, so that it survives the process dying.
+        dataOut.flush();
+        dirty = true;
+
+        if (out.position() >= segmentSize)
+            rotate();
+    }
+
+    private void rotate() throws IOException {
+        closeSegment();
+        sequence++;
+        openSegment();
+    }
+
+    private File getSegmentFile() {
+        return new File(db.getBaseDir(), sequence + SUFFIX);
+    }
+
+    private void openSegment() throws IOException {
+        File file = getSegmentFile();
+        out = new ChecksumOutputStream(new FileOutputStream(file, true), file.length());
+        dataOut = new DataOutputStream(out);
+    }
+
+    private void closeSegment() {
+        try {
+            out.force();
+        } catch (IOException e) {
+            logger.warn("Failed to sync write-ahead log", e);
+        }
+        Utils.closeQuietly(dataOut);
+        dirty = false;
+    }
+}
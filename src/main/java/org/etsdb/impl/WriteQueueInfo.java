@@ -1,10 +1,21 @@
 package org.etsdb.impl;
 
 import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicInteger;
+import org.dsa.iot.etsdb.utils.atomic.NotifyAtomicLong;
 import org.etsdb.DbConfig;
+import org.etsdb.QueueOverflowPolicy;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 class WriteQueueInfo {
     final int discardQueueSize;
@@ -13,10 +24,19 @@ class WriteQueueInfo {
     final int shardQueueSizeMinimum;
     final int shardQueueSizeMaximum;
     final int maxQueueSize;
+    final long memoryBudget;
+    final QueueOverflowPolicy overflowPolicy;
+    final int blockTimeout;
 
     final NotifyAtomicInteger queueSize = new NotifyAtomicInteger();
-    final AtomicInteger recentDiscards = new AtomicInteger();
+    final NotifyAtomicLong queueBytes = new NotifyAtomicLong();
+    final NotifyAtomicLong blockedMillis = new NotifyAtomicLong();
+    final NotifyAtomicLong drops = new NotifyAtomicLong();
+    final SlabPool slabs = new SlabPool();
     final Random random = new Random();
+    // Set while a writer is flushing queues to bring them back within the budget.
+    final AtomicBoolean relieving = new AtomicBoolean();
+    private final ConcurrentMap<String, AtomicLong> recentDrops = new ConcurrentHashMap<>();
 
     public WriteQueueInfo(DbConfig config) {
         expireMinimum = config.getQueueExpireMinimum();
@@ -25,6 +45,68 @@ class WriteQueueInfo {
         shardQueueSizeMaximum = config.getQueueShardQueueSizeMaximum();
         maxQueueSize = config.getQueueMaxQueueSize();
         discardQueueSize = config.getQueueDiscardQueueSize();
+        memoryBudget = config.getQueueMemoryBudget();
+        overflowPolicy = config.getQueueOverflowPolicy();
+        blockTimeout = config.getQueueBlockTimeout();
+    }
+
+    /**
+     * @return true if the queues of all databases are over the memory budget, or this database's queue holds the
+     * discard queue size.
+     */
+    boolean overBudget() {
+        return QueueBudget.exceeds(memoryBudget) || queueSize.get() >= discardQueueSize;
+    }
+
+    /**
+     * @return true if the queue should be flushed further to make room, i.e. until the queues of all databases are
+     * under three quarters of the memory budget, so that writers are not held back again by the next write.
+     */
+    boolean overLowWater() {
+        return (memoryBudget > 0 && QueueBudget.getBytes() > memoryBudget - memoryBudget / 4)
+                || queueSize.get() >= discardQueueSize;
+    }
+
+    /**
+     * Called by the pending write lists when the memory that they hold changes.
+     */
+    void addBytes(long delta) {
+        queueBytes.addAndGet(delta);
+        QueueBudget.add(delta);
+    }
+
+    void dropped(String seriesId, int count) {
+        drops.addAndGet(count);
+        AtomicLong recent = recentDrops.get(seriesId);
+        if (recent == null) {
+            AtomicLong existing = recentDrops.putIfAbsent(seriesId, recent = new AtomicLong());
+            if (existing != null) {
+                recent = existing;
+            }
+        }
+        recent.addAndGet(count);
+    }
+
+    /**
+     * Removes the drops that were counted since the last call.
+     *
+     * @return the series with drops, with the most drops first.
+     */
+    List<Map.Entry<String, Long>> takeRecentDrops() {
+        List<Map.Entry<String, Long>> result = new ArrayList<>();
+        for (String seriesId : recentDrops.keySet()) {
+            AtomicLong recent = recentDrops.remove(seriesId);
+            if (recent != null) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(seriesId, recent.get()));
+            }
+        }
+        Collections.sort(result, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        return result;
     }
 
     public long getExpiryTime() {
@@ -2,21 +2,25 @@ package org.etsdb.util;
 
 import java.util.Arrays;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Counts events in time buckets without locking. Each bucket holds the number of its time slot in the high 32 bits
+ * and its count in the low 32 bits, so that a hit that moves to a new slot resets the count in the same compare and
+ * set as it adds to it.
+ */
 public class EventHistogram {
 
     private final int bucketSize;
-    private final int[] buckets;
-    private final AtomicLong lastTime = new AtomicLong();
-
-    private int position;
+    private final AtomicLongArray buckets;
 
     public EventHistogram(int bucketSize, int buckets) {
         this.bucketSize = bucketSize;
-        this.buckets = new int[buckets];
-        this.position = 0;
-        this.lastTime.set(System.currentTimeMillis() / bucketSize);
+        this.buckets = new AtomicLongArray(buckets);
+        long slot = System.currentTimeMillis() / bucketSize;
+        for (int i = 0; i < buckets; i++) {
+            this.buckets.set(getIndex(slot - i), (slot - i) << 32);
+        }
     }
 
     public static void main(String[] args)
@@ -31,35 +35,43 @@ public class EventHistogram {
     }
 
     public void hit() {
-        update();
-        this.buckets[this.position] += 1;
+        hit(1);
     }
 
-    public int[] getEventCounts() {
-        return getEventCounts(true);
+    public void hit(int count) {
+        long slot = System.currentTimeMillis() / this.bucketSize;
+        int index = getIndex(slot);
+        while (true) {
+            long current = this.buckets.get(index);
+            long next;
+            if ((int) (current >>> 32) == (int) slot) {
+                next = current + count;
+            } else {
+                next = (slot << 32) | (count & 0xffffffffL);
+            }
+            if (this.buckets.compareAndSet(index, current, next)) {
+                break;
+            }
+        }
     }
 
-    private int[] getEventCounts(boolean update) {
-        if (update) {
-            update();
+    /**
+     * @return the counts of the buckets, oldest first, ending with the current one.
+     */
+    public int[] getEventCounts() {
+        long slot = System.currentTimeMillis() / this.bucketSize;
+        int[] result = new int[this.buckets.length()];
+        for (int i = 0; i < result.length; i++) {
+            long s = slot - (result.length - 1 - i);
+            long value = this.buckets.get(getIndex(s));
+            if ((int) (value >>> 32) == (int) s) {
+                result[i] = (int) value;
+            }
         }
-
-        int[] result = new int[this.buckets.length];
-        int pos = this.position % this.buckets.length + 1;
-
-        System.arraycopy(this.buckets, pos, result, 0, this.buckets.length - pos);
-        System.arraycopy(this.buckets, 0, result, this.buckets.length - pos, pos);
-
         return result;
     }
 
-    private void update() {
-        long thisTime = System.currentTimeMillis() / this.bucketSize;
-        int diff = (int) (thisTime - this.lastTime.getAndSet(thisTime));
-        while (diff > 0) {
-            this.position = ((this.position + 1) % this.buckets.length);
-            this.buckets[this.position] = 0;
-            diff--;
-        }
+    private int getIndex(long slot) {
+        return (int) (slot % this.buckets.length());
     }
 }
@@ -20,6 +20,7 @@ public class Main {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
     private static final Random RANDOM = new Random();
+    private static final int BATCH_SIZE = 1000;
 
     public static void main(String[] args) throws Exception {
         String prop = System.getProperty("etsdb.timestamp_bit_shift", "30");
@@ -31,12 +32,20 @@ public class Main {
         Serializer<ByteData> ser = new ValueSerializer();
         Database<ByteData> db = DatabaseFactory.createDatabase(file, ser);
 
-        ByteData bd = new ByteData();
-        bd.setValue(new Value(RANDOM.nextInt()));
+        long[] ts = new long[BATCH_SIZE];
+        ByteData[] values = new ByteData[BATCH_SIZE];
+        for (int j = 0; j < BATCH_SIZE; j++) {
+            values[j] = new ByteData();
+            values[j].setValue(new Value(RANDOM.nextInt()));
+        }
         for (int i = 0; i < 10000000;) {
-            db.write("test", System.currentTimeMillis(), bd);
-            bd.getValue().set(RANDOM.nextInt());
-            if (++i % 100000 == 0) {
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                ts[j] = System.currentTimeMillis();
+                values[j].getValue().set(RANDOM.nextInt());
+            }
+            db.write("test", ts, values);
+            i += BATCH_SIZE;
+            if (i % 100000 == 0) {
                 LOGGER.info("Wrote {} rows", i);
             }
         }